@@ -0,0 +1,117 @@
+package com.circuitjournal.benchmark;
+
+import com.circuitjournal.capture.ImageCapture;
+import com.circuitjournal.capture.PixelFormat;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding throughput of ImageCapture.addReceivedBytes, one operation decodes a full 640x480 frame.
+ *
+ * The "bytes" counter is decoded serial bytes per second. At 2000000 baud the serial line
+ * delivers 200000 bytes per second, the decoder has to stay well above that.
+ * Run with "-prof gc" to see allocations per operation.
+ *
+ * Buffers are decoded in place with absolute gets, the READ_ONLY_BUFFER and DIRECT_BUFFER
+ * cases neither copy nor allocate per operation.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ImageCaptureDecodeBenchmark {
+
+    public static final int FRAME_W = ImageCapture.MAX_W;
+    public static final int FRAME_H = ImageCapture.MAX_H;
+
+    public enum Delivery {
+        // byte[] chunks, like SerialDataReceived
+        ARRAY,
+        // Read-only ByteBuffer view, like SerialBufferReceived
+        READ_ONLY_BUFFER,
+        // Read-only view of a direct ByteBuffer
+        DIRECT_BUFFER
+    }
+
+    @Param({"PIXEL_RGB565", "PIXEL_RGB565_WITH_PARITY_CHECK", "PIXEL_GRAYSCALE", "PIXEL_GRAYSCALE_WITH_PARITY_CHECK"})
+    public PixelFormat pixelFormat;
+
+    // Probability of a flipped bit per byte
+    @Param({"0", "0.001", "0.01"})
+    public double bitErrorRate;
+
+    // Bytes per delivery from the serial reader
+    @Param({"512", "65536"})
+    public int chunkSize;
+
+    @Param({"ARRAY", "READ_ONLY_BUFFER", "DIRECT_BUFFER"})
+    public Delivery delivery;
+
+    private ImageCapture imageCapture;
+    private byte[] frameBytes;
+    private ByteBuffer frameBuffer;
+    private int capturedLineCount;
+
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class DecodedBytes {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        frameBytes = SyntheticFrameStream.createFrame(pixelFormat, FRAME_W, FRAME_H, bitErrorRate, 1);
+        if (delivery == Delivery.DIRECT_BUFFER) {
+            ByteBuffer directBuffer = ByteBuffer.allocateDirect(frameBytes.length);
+            directBuffer.put(frameBytes);
+            frameBuffer = directBuffer.asReadOnlyBuffer();
+        } else {
+            frameBuffer = ByteBuffer.wrap(frameBytes).asReadOnlyBuffer();
+        }
+        imageCapture = new ImageCapture(
+                (imageFrame, lineIndex) -> capturedLineCount++,
+                (debugText) -> { });
+    }
+
+
+    @Benchmark
+    public int decodeFrame(DecodedBytes decodedBytes) {
+        imageCapture.initNewFrame(FRAME_W, FRAME_H, pixelFormat);
+        for (int offset = 0; offset < frameBytes.length; offset += chunkSize) {
+            int length = Math.min(chunkSize, frameBytes.length - offset);
+            if (delivery == Delivery.ARRAY) {
+                imageCapture.addReceivedBytes(frameBytes, offset, length);
+            } else {
+                frameBuffer.limit(offset + length);
+                frameBuffer.position(offset);
+                imageCapture.addReceivedBytes(frameBuffer);
+            }
+        }
+        decodedBytes.bytes += frameBytes.length;
+        return capturedLineCount;
+    }
+
+}
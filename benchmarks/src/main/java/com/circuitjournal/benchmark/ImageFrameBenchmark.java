@@ -0,0 +1,131 @@
+package com.circuitjournal.benchmark;
+
+import com.circuitjournal.capture.ImageCapture;
+import com.circuitjournal.capture.ImageFrame;
+import com.circuitjournal.capture.ImageFramePool;
+import com.circuitjournal.capture.PixelFormat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost per 640x480 frame of filling an ImageFrame, repairing pixels that failed the parity check
+ * and rendering the frame the way MainWindow does.
+ *
+ * Invalid pixels are repaired in ImageFrame.newLine() once the line below is finished, so every
+ * benchmark includes the repair. The repair cost is the difference between a pixelErrorRate
+ * and pixelErrorRate 0, which fills without invalid pixels. Frames are reused from an ImageFramePool
+ * like ImageCapture does, run with "-prof gc" to see bytes allocated per frame.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class ImageFrameBenchmark {
+
+    public static final int FRAME_W = ImageCapture.MAX_W;
+    public static final int FRAME_H = ImageCapture.MAX_H;
+
+    // Share of pixels that failed the parity check, 0 measures filling without repair
+    @Param({"0", "0.001", "0.01", "0.1"})
+    public double pixelErrorRate;
+
+    private int[] rgbPixels;
+    private int[] invalidChannelFlags;
+    private int[] linePixels;
+    private ImageFramePool framePool;
+    private Runnable lineCaptured;
+    private BufferedImage image;
+    private int[] imagePixels;
+    private BufferedImage screenImage;
+    private int capturedLineCount;
+
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(1);
+        rgbPixels = new int[FRAME_W * FRAME_H];
+        invalidChannelFlags = new int[FRAME_W * FRAME_H];
+        for (int i = 0; i < rgbPixels.length; i++) {
+            rgbPixels[i] = random.nextInt(0x1000000) & 0xF8FCF8;
+            if (random.nextDouble() < pixelErrorRate) {
+                // Same channel combinations that ImageCapture reports
+                int error = random.nextInt(3);
+                invalidChannelFlags[i] = error == 0
+                        ? ImageFrame.INVALID_R | ImageFrame.INVALID_G
+                        : error == 1 ? ImageFrame.INVALID_G | ImageFrame.INVALID_B : ImageFrame.INVALID_RGB;
+            }
+        }
+        linePixels = new int[FRAME_W];
+        framePool = new ImageFramePool();
+        lineCaptured = () -> capturedLineCount++;
+
+        // Same image setup as MainWindow
+        image = new BufferedImage(FRAME_W, FRAME_H, BufferedImage.TYPE_INT_ARGB);
+        imagePixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        screenImage = new BufferedImage(FRAME_W, FRAME_H, BufferedImage.TYPE_INT_RGB);
+    }
+
+
+    @Benchmark
+    public ImageFrame fillFrame() {
+        return fill();
+    }
+
+    @Benchmark
+    public int fillAndCopyFrame() {
+        ImageFrame frame = fill();
+        int checksum = 0;
+        for (int y = 0; y < FRAME_H; y++) {
+            frame.copyLineArgb(y, linePixels, 0, FRAME_W);
+            checksum += linePixels[y % FRAME_W];
+        }
+        return checksum;
+    }
+
+    /**
+     * Fill, copy the lines into the window image raster and paint the image like Swing does
+     */
+    @Benchmark
+    public BufferedImage fillAndRenderFrame() {
+        ImageFrame frame = fill();
+        for (int y = 0; y < FRAME_H; y++) {
+            frame.copyLineArgb(y, imagePixels, y * FRAME_W, FRAME_W);
+        }
+        Graphics2D graphics = screenImage.createGraphics();
+        try {
+            graphics.drawImage(image, 0, 0, null);
+        } finally {
+            graphics.dispose();
+        }
+        return screenImage;
+    }
+
+
+    private ImageFrame fill() {
+        ImageFrame frame = framePool.takeFrame(FRAME_W, FRAME_H, PixelFormat.PIXEL_RGB565_WITH_PARITY_CHECK, lineCaptured);
+        for (int i = 0; i < rgbPixels.length; i++) {
+            frame.addPixel(rgbPixels[i], invalidChannelFlags[i]);
+        }
+        framePool.publish(frame);
+        return frame;
+    }
+
+}
@@ -0,0 +1,85 @@
+package com.circuitjournal.benchmark;
+
+import com.circuitjournal.capture.PixelFormat;
+
+import java.util.Random;
+
+/**
+ * Builds the serial byte stream of one frame the way the Arduino sends it, without the
+ * new frame command. Pixel bytes are never 0x00 because that starts a command.
+ */
+public class SyntheticFrameStream {
+
+    // Same parity bits as ImageCapture, see the comment there
+    private static final int H_BYTE_PARITY_CHECK =  0b00100000;
+    private static final int H_BYTE_PARITY_INVERT = 0b00001000;
+    private static final int L_BYTE_PARITY_CHECK =  0b00001000;
+    private static final int L_BYTE_PARITY_INVERT = 0b00100000;
+
+
+    private SyntheticFrameStream() {
+    }
+
+
+    /**
+     * @return number of serial bytes of a frame
+     */
+    public static int getFrameByteCount(PixelFormat pixelFormat, int w, int h) {
+        // Parity check grayscale sends one pixel per byte, the pairs are only for the parity check
+        return pixelFormat == PixelFormat.PIXEL_GRAYSCALE_WITH_PARITY_CHECK || pixelFormat == PixelFormat.PIXEL_GRAYSCALE
+                ? w * h
+                : w * h * 2;
+    }
+
+    /**
+     * @param bitErrorRate probability that a byte has one flipped bit
+     */
+    public static byte[] createFrame(PixelFormat pixelFormat, int w, int h, double bitErrorRate, long seed) {
+        Random random = new Random(seed);
+        byte[] bytes = new byte[getFrameByteCount(pixelFormat, w, h)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) createPixelByte(pixelFormat, i, random);
+        }
+        injectBitErrors(bytes, bitErrorRate, random);
+        return bytes;
+    }
+
+    private static int createPixelByte(PixelFormat pixelFormat, int index, Random random) {
+        while (true) {
+            int b = random.nextInt(256);
+            if (b != 0 && isValidPixelByte(pixelFormat, index, b)) {
+                return b;
+            }
+        }
+    }
+
+    private static boolean isValidPixelByte(PixelFormat pixelFormat, int index, int b) {
+        boolean first = index % 2 == 0;
+        switch (pixelFormat) {
+            case PIXEL_RGB565_WITH_PARITY_CHECK:
+                return first
+                        ? ((b & H_BYTE_PARITY_CHECK) > 0) != ((b & H_BYTE_PARITY_INVERT) > 0)
+                        : ((b & L_BYTE_PARITY_CHECK) > 0) == ((b & L_BYTE_PARITY_INVERT) > 0);
+            case PIXEL_GRAYSCALE_WITH_PARITY_CHECK:
+                return (b & 1) == (first ? 0 : 1);
+            default:
+                return true;
+        }
+    }
+
+    private static void injectBitErrors(byte[] bytes, double bitErrorRate, Random random) {
+        if (bitErrorRate <= 0) {
+            return;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (random.nextDouble() < bitErrorRate) {
+                int flipped = (bytes[i] & 0xFF) ^ (1 << random.nextInt(8));
+                // Keep the error inside the pixel data
+                if (flipped != 0) {
+                    bytes[i] = (byte) flipped;
+                }
+            }
+        }
+    }
+
+}
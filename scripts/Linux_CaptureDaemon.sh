@@ -0,0 +1,2 @@
+#!/bin/sh
+java -Djava.awt.headless=true -cp ./tool/ArduImageCapture.jar com.circuitjournal.daemon.CaptureDaemon "$@"
@@ -1,6 +1,7 @@
 #!/usr/bin/env python
 import sys
 import os
+import re
 import numpy as np
 import tensorflow as tf
 from tensorflow.keras.models import load_model
@@ -22,44 +23,151 @@ class WasteClassifier:
         img_array = np.expand_dims(img_array, axis=0)
         img_array = img_array / 255.0  # Normalize
         return img_array
+
+    def preprocess_pixels(self, pixel_bytes, width, height):
+        """Preprocess raw RGB pixels (3 bytes per pixel) for classification"""
+        img_array = np.frombuffer(pixel_bytes, dtype=np.uint8).reshape((height, width, 3))
+        img_array = img_array.astype(np.float32)
+        if (height, width) != (224, 224):
+            img_array = tf.image.resize(img_array, (224, 224), method="nearest").numpy()
+        img_array = np.expand_dims(img_array, axis=0)
+        img_array = img_array / 255.0  # Normalize
+        return img_array
         
     def classify(self, img_path):
-        """Classify image and return prediction results"""
+        """Classify image file and return prediction results"""
         try:
-            img_array = self.preprocess_image(img_path)
-            predictions = self.model.predict(img_array)
-            
-            # Get the top prediction
-            top_prediction_idx = np.argmax(predictions[0])
-            top_prediction_score = float(predictions[0][top_prediction_idx])
-            top_category = CATEGORIES[top_prediction_idx]
-            
-            # Get all predictions with their confidence scores
-            all_predictions = []
-            for i, score in enumerate(predictions[0]):
-                all_predictions.append({
-                    "category": CATEGORIES[i],
-                    "confidence": float(score)
-                })
-            
-            result = {
-                "success": True,
-                "category": top_category,
-                "confidence": top_prediction_score,
-                "all_predictions": all_predictions
-            }
+            return self.predict_batch([self.preprocess_image(img_path)])[0]
         except Exception as e:
-            result = {
+            return {
                 "success": False,
                 "error": str(e)
             }
-            
-        return result
+
+    def classify_batch(self, requests):
+        """Classify several requests with one model prediction
+
+        requests is a list of (request, pixel_bytes) pairs, pixel_bytes is None for
+        image file requests. Returns one result per request in the same order.
+        """
+        results = [None] * len(requests)
+        img_arrays = []
+        img_indexes = []
+        for i, (request, pixel_bytes) in enumerate(requests):
+            try:
+                if pixel_bytes is not None:
+                    img_arrays.append(self.preprocess_pixels(pixel_bytes, request["width"], request["height"]))
+                else:
+                    image_path = request.get("image_path")
+                    if not image_path or not os.path.exists(image_path):
+                        raise ValueError(f"Image not found: {image_path}")
+                    img_arrays.append(self.preprocess_image(image_path))
+                img_indexes.append(i)
+            except Exception as e:
+                results[i] = {"success": False, "error": str(e)}
+
+        if img_arrays:
+            for i, result in zip(img_indexes, self.predict_batch(img_arrays)):
+                results[i] = result
+        return results
+
+    def predict_batch(self, img_arrays):
+        """Run the model once on preprocessed images, returns one result per image"""
+        try:
+            predictions = self.model.predict(np.concatenate(img_arrays, axis=0), verbose=0)
+        except Exception as e:
+            return [{"success": False, "error": str(e)} for _ in img_arrays]
+
+        return [self.create_result(image_predictions) for image_predictions in predictions]
+
+    def create_result(self, image_predictions):
+        """Create result for the predictions of one image"""
+        # Get the top prediction
+        top_prediction_idx = np.argmax(image_predictions)
+        top_prediction_score = float(image_predictions[top_prediction_idx])
+        top_category = CATEGORIES[top_prediction_idx]
+
+        # Get all predictions with their confidence scores
+        all_predictions = []
+        for i, score in enumerate(image_predictions):
+            all_predictions.append({
+                "category": CATEGORIES[i],
+                "confidence": float(score)
+            })
+
+        return {
+            "success": True,
+            "category": top_category,
+            "confidence": top_prediction_score,
+            "all_predictions": all_predictions
+        }
+
+def run_worker(model_path):
+    """Load the model once and classify requests read from stdin
+
+    Each request is one JSON line {"id": ..., "image_path": ...} or
+    {"id": ..., "width": ..., "height": ..., "pixel_bytes": N} followed by N bytes of
+    raw RGB pixels. Several requests can be sent as one {"batch": [...]} line followed
+    by their pixel bytes in the same order, they are classified with one prediction.
+    Each response is one JSON line with the classification result and the same "id".
+    """
+    protocol_in = sys.stdin.buffer
+    protocol_out = sys.stdout
+    # Keep TensorFlow and library prints off the protocol stream
+    sys.stdout = sys.stderr
+
+    if not os.path.exists(model_path):
+        sys.stderr.write(f"Model not found: {model_path}\n")
+        sys.exit(1)
+
+    classifier = WasteClassifier(model_path)
+
+    while True:
+        line = protocol_in.readline()
+        if not line:
+            break
+        line = line.strip()
+        if not line:
+            continue
+
+        try:
+            request = json.loads(line)
+        except ValueError as e:
+            # Echo the ids that can still be read, a response without id fails
+            # the requests in flight and restarts the worker
+            ids = [int(request_id) for request_id in re.findall(rb'"id"\s*:\s*(\d+)', line)]
+            for request_id in ids or [None]:
+                result = {"success": False, "error": f"Invalid request: {e}"}
+                if request_id is not None:
+                    result["id"] = request_id
+                protocol_out.write(json.dumps(result) + "\n")
+            protocol_out.flush()
+            continue
+
+        items = request["batch"] if "batch" in request else [request]
+        requests = []
+        for item in items:
+            pixel_bytes = None
+            if "pixel_bytes" in item:
+                pixel_bytes = protocol_in.read(item["pixel_bytes"])
+                if len(pixel_bytes) != item["pixel_bytes"]:
+                    return
+            requests.append((item, pixel_bytes))
+
+        for item, result in zip(items, classifier.classify_batch(requests)):
+            result["id"] = item.get("id")
+            protocol_out.write(json.dumps(result) + "\n")
+        protocol_out.flush()
 
 def main():
     """Main function to run the classifier from command line"""
+    if len(sys.argv) == 3 and sys.argv[1] == "--worker":
+        run_worker(sys.argv[2])
+        return
+
     if len(sys.argv) != 3:
         print("Usage: python waste_classifier.py <model_path> <image_path>")
+        print("       python waste_classifier.py --worker <model_path>")
         return
         
     model_path = sys.argv[1]
@@ -26,7 +26,7 @@ public class ArduImageCapture implements Tool {
         Settings settings = new ArduinoPreferencesSettings();
 
         //editor.statusNotice("ArduImageCapture started!");
-        SerialReader serialReader = new JSerialCommSerialReader();
+        SerialReader serialReader = new JSerialCommSerialReader(JSerialCommSerialReader.ReadMode.READER_THREAD);
         MainWindow mainWindow = new MainWindow(editor.getContentPane(), serialReader, settings);
 
         String selectedPort = PreferencesData.get("serial.port");
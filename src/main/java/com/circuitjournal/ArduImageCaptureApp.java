@@ -26,7 +26,7 @@ public class ArduImageCaptureApp {
         Settings settings = new PropertiesFileSettings(propertiesFile);
 
 
-        SerialReader serialReader = new JSerialCommSerialReader();
+        SerialReader serialReader = new JSerialCommSerialReader(JSerialCommSerialReader.ReadMode.READER_THREAD);
         MainWindow window = new MainWindow(null, serialReader, settings);
         //window.showMessage(propertiesFilePath);
         window.setExitOnClose();
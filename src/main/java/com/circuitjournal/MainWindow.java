@@ -1,14 +1,21 @@
 package com.circuitjournal;
 
 
+import com.circuitjournal.capture.FrameSnapshot;
 import com.circuitjournal.capture.ImageCapture;
 import com.circuitjournal.capture.ImageFrame;
+import com.circuitjournal.capture.ImageFramePool;
+import com.circuitjournal.metrics.CaptureMetrics;
+import com.circuitjournal.metrics.MetricsReporter;
 import com.circuitjournal.serialreader.SerialReader;
 import com.circuitjournal.serialreader.SerialReaderException;
 import com.circuitjournal.settings.Settings;
+import com.circuitjournal.storage.AsyncFrameWriter;
+import com.circuitjournal.storage.FrameSink;
+import com.circuitjournal.storage.PngFileSink;
+import com.circuitjournal.storage.RawFrameRecorder;
 import org.apache.commons.lang3.StringUtils;
 
-import javax.imageio.ImageIO;
 import javax.net.ssl.HttpsURLConnection;
 import javax.swing.*;
 import java.awt.*;
@@ -17,14 +24,17 @@ import java.awt.event.MouseEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.URI;
 import java.net.URL;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.function.Consumer;
+import java.util.function.IntToLongFunction;
 
 /**
  * Created by indrek on 06.07.2021.
@@ -46,6 +56,8 @@ public class MainWindow {
     private static final String BUTTON_NAME_STOP = "Stop";
     private static final String BUTTON_NAME_SELECT_SAVE_FOLDER = "Select save folder";
     private static final String SELECT_SAVE_FOLDER_TILE = "Save images to";
+    private static final String CHECKBOX_NAME_RAW_RECORDING = "Raw recording";
+    private static final String RAW_RECORDING_TOOLTIP = "Append frames to one " + RawFrameRecorder.FILE_EXTENSION + " file instead of png files";
 
     private static final String DEFAULT_IMAGE_DIRECTORY = "/img";
 
@@ -53,8 +65,11 @@ public class MainWindow {
     private JPanel mainPanel;
     private File selectedFolder;
     private JLabel saveCountLabel = new JLabel();
-    private Integer saveCounter = 0;
+    private AsyncFrameWriter frameWriter;
+    private JCheckBox rawRecordingCheckBox;
+    private RawFrameRecorder rawFrameRecorder;
     private BufferedImage imageBuffer;
+    private int[] imagePixels;
     private JLabel imageContainer;
     private TextArea debugWindow;
     private JComboBox<String> comPortSelection;
@@ -62,19 +77,39 @@ public class MainWindow {
     private JButton startListenButton;
     private JButton stopListenButton;
 
+    private final Object pendingDrawLock = new Object();
+    private ImageFrame pendingDrawFrame;
+    private int pendingDrawFromLine;
+    private int pendingDrawToLine;
+    private ImageFrame pendingFinishedFrame;
+    private int pendingFinishedFromLine;
+    private boolean drawTaskQueued = false;
+    private long drawTaskQueuedNanos;
+
     private Settings settings;
     private SerialReader serialReader;
     private ImageCapture imageCapture;
+    private final ImageFramePool framePool = new ImageFramePool();
+    private final CaptureMetrics metrics = new CaptureMetrics();
+    private final MetricsReporter metricsReporter;
 
 
 
     public MainWindow(Component showRelativeTo, SerialReader serialReader, Settings settings) {
-        this.imageCapture = new ImageCapture(this::drawImage, this::debugTextReceived);
+        this.imageCapture = new ImageCapture(this::drawImage, this::debugTextReceived, framePool);
+        this.frameWriter = new AsyncFrameWriter(AsyncFrameWriter.DEFAULT_QUEUE_CAPACITY, this::imageSaved);
 
         this.serialReader = serialReader;
-        this.serialReader.setReceivedDataHandler((bytes)-> imageCapture.addReceivedBytes(bytes));
+        IntToLongFunction receivedNanos = serialReader::getReceivedNanos;
+        this.serialReader.setReceivedBufferHandler((buffer)-> imageCapture.addReceivedBytes(buffer, receivedNanos));
         this.settings = settings;
 
+        this.serialReader.setMetrics(metrics);
+        this.imageCapture.setMetrics(metrics);
+        this.frameWriter.setMetrics(metrics);
+        this.metrics.registerMBean();
+        this.metricsReporter = new MetricsReporter(metrics, MetricsReporter.DEFAULT_INTERVAL_SECONDS, System.out);
+
         this.mainPanel = new JPanel(new BorderLayout());
         this.mainPanel.add(createTopToolbar(), BorderLayout.PAGE_START);
         this.mainPanel.add(createCenterScrollablePanel(), BorderLayout.CENTER);
@@ -90,6 +125,10 @@ public class MainWindow {
             @Override
             public void windowClosing(WindowEvent windowEvent) {
                 stopListening();
+                closeRawFrameRecorder();
+                frameWriter.shutdown();
+                metricsReporter.close();
+                metrics.unregisterMBean();
             }
         });
     }
@@ -191,6 +230,7 @@ public class MainWindow {
 
     private JComponent createImagePanel() {
         imageBuffer = new BufferedImage(MAX_IMAGE_W,MAX_IMAGE_H, BufferedImage.TYPE_INT_ARGB);
+        imagePixels = ((DataBufferInt) imageBuffer.getRaster().getDataBuffer()).getData();
         imageContainer = new JLabel(new ImageIcon(imageBuffer));
         return imageContainer;
     }
@@ -224,6 +264,7 @@ public class MainWindow {
         JLabel filePathLabel = new JLabel();
 
         saveBar.add(createSelectFolderButton(filePathLabel));
+        saveBar.add(createRawRecordingCheckBox());
         saveBar.add(Box.createHorizontalStrut(10));
         saveBar.add(filePathLabel);
         saveBar.add(saveCountLabel);
@@ -241,6 +282,10 @@ public class MainWindow {
             fileChooser.setCurrentDirectory(selectedFolder == null ? getDefaultSaveDirectory() : selectedFolder);
 
             if (fileChooser.showOpenDialog(listenButton) == JFileChooser.APPROVE_OPTION) {
+                if (selectedFolder == null) {
+                    // Frames are copied for saving only after a folder is selected
+                    imageCapture.addFrameCapturedListener(this::frameCaptured);
+                }
                 selectedFolder = fileChooser.getSelectedFile();
                 if (!selectedFolder.isDirectory()) {
                     selectedFolder = selectedFolder.getParentFile();
@@ -253,6 +298,17 @@ public class MainWindow {
         return listenButton;
     }
 
+    private JCheckBox createRawRecordingCheckBox() {
+        rawRecordingCheckBox = new JCheckBox(CHECKBOX_NAME_RAW_RECORDING);
+        rawRecordingCheckBox.setToolTipText(RAW_RECORDING_TOOLTIP);
+        rawRecordingCheckBox.addActionListener((event)-> {
+            if (!rawRecordingCheckBox.isSelected()) {
+                closeRawFrameRecorder();
+            }
+        });
+        return rawRecordingCheckBox;
+    }
+
     private File getDefaultSaveDirectory() {
         String defaultSaveFolder = settings.getDefaultSaveFolder();
         if (StringUtils.isNotBlank(defaultSaveFolder)) {
@@ -333,45 +389,134 @@ public class MainWindow {
 
 
     private void drawImage(ImageFrame imageFrame, Integer lineIndex) {
-        JLabel imageContainer = this.imageContainer;
-
-        // Make sure that table update is executed in AWT thread
-        SwingUtilities.invokeLater(()-> {
-            synchronized (imageContainer) {
-                Graphics2D g = imageBuffer.createGraphics();
-                int fromLine = lineIndex != null ? lineIndex : 0;
-                int toLine = lineIndex != null ? lineIndex : imageFrame.getLineCount() - 1;
-
-                for (int y = fromLine; y <= toLine; y++) {
-                    for (int x = 0; x < imageFrame.getLineLength(); x++) {
-                        if (x < MAX_IMAGE_W && y < MAX_IMAGE_H) {
-                            g.setColor(imageFrame.getPixelColor(x, y));
-                            g.drawLine(x, y, x, y);
-                        }
-                    }
+        // Invalid pixels of the line above are fixed when a line is finished
+        int fromLine = lineIndex != null ? Math.max(0, lineIndex - 1) : 0;
+        int toLine = lineIndex != null ? lineIndex : imageFrame.getLineCount() - 1;
+
+        // Collect dirty lines and keep at most one draw task waiting in AWT thread
+        synchronized (pendingDrawLock) {
+            if (pendingDrawFrame != imageFrame) {
+                // Frames waiting to be drawn must not be reused for the next image
+                if (!framePool.acquire(imageFrame, imageFrame.getGeneration())) {
+                    return;
                 }
-                imageContainer.repaint();
-                // wait for last line to be drawn
-                if (selectedFolder != null && toLine == imageFrame.getLineCount() - 1) {
-                    saveImageToFile(imageBuffer.getSubimage(0, 0, imageFrame.getLineLength(), imageFrame.getLineCount()), selectedFolder);
+                if (pendingDrawFrame != null && pendingDrawToLine == pendingDrawFrame.getLineCount() - 1) {
+                    // Previous frame is finished but not drawn yet, it still has to be drawn
+                    if (pendingFinishedFrame != null) {
+                        framePool.release(pendingFinishedFrame);
+                    }
+                    pendingFinishedFrame = pendingDrawFrame;
+                    pendingFinishedFromLine = pendingDrawFromLine;
+                } else if (pendingDrawFrame != null) {
+                    framePool.release(pendingDrawFrame);
                 }
+                pendingDrawFrame = imageFrame;
+                pendingDrawFromLine = fromLine;
+                pendingDrawToLine = toLine;
+            } else {
+                pendingDrawFromLine = Math.min(pendingDrawFromLine, fromLine);
+                pendingDrawToLine = Math.max(pendingDrawToLine, toLine);
             }
-        });
+
+            if (!drawTaskQueued) {
+                drawTaskQueued = true;
+                drawTaskQueuedNanos = System.nanoTime();
+                SwingUtilities.invokeLater(this::drawPendingLines);
+            }
+        }
     }
 
-    private void saveImageToFile(BufferedImage image, File toFolder) {
-        try {
-            // save image to png file
-            File newFile = new File(toFolder.getAbsolutePath(), getNextFileName());
-            ImageIO.write(image, "png", newFile);
-            saveCountLabel.setText(" (" + (++saveCounter) + ")");
-        } catch (Exception e) {
-            System.out.println("Saving file failed: " + e.getMessage());
+    private void drawPendingLines() {
+        ImageFrame finishedFrame;
+        int finishedFromLine;
+        ImageFrame frame;
+        int fromLine;
+        int toLine;
+        long queuedNanos;
+        synchronized (pendingDrawLock) {
+            queuedNanos = drawTaskQueuedNanos;
+            finishedFrame = pendingFinishedFrame;
+            finishedFromLine = pendingFinishedFromLine;
+            frame = pendingDrawFrame;
+            fromLine = pendingDrawFromLine;
+            toLine = pendingDrawToLine;
+            pendingFinishedFrame = null;
+            pendingDrawFrame = null;
+            drawTaskQueued = false;
+        }
+
+        if (finishedFrame != null) {
+            drawImageLines(finishedFrame, finishedFromLine, finishedFrame.getLineCount() - 1);
+            framePool.release(finishedFrame);
+        }
+        if (frame != null) {
+            drawImageLines(frame, fromLine, toLine);
+            framePool.release(frame);
+        }
+        metrics.getRenderLatencyHistogram().recordSince(queuedNanos);
+    }
+
+    private void drawImageLines(ImageFrame imageFrame, int fromLine, int toLine) {
+        int lineLength = Math.min(imageFrame.getLineLength(), MAX_IMAGE_W);
+        int lastDrawnLine = Math.min(toLine, MAX_IMAGE_H - 1);
+
+        // Copy finished lines straight into the image raster
+        for (int y = fromLine; y <= lastDrawnLine; y++) {
+            imageFrame.copyLineArgb(y, imagePixels, y * MAX_IMAGE_W, lineLength);
+        }
+        repaintImageLines(fromLine, lastDrawnLine);
+    }
+
+    private void repaintImageLines(int fromLine, int toLine) {
+        if (toLine < fromLine) {
+            return;
+        }
+        // Image icon is centered in the label
+        int imageY = Math.max(0, (imageContainer.getHeight() - MAX_IMAGE_H) / 2);
+        imageContainer.repaint(0, imageY + fromLine, imageContainer.getWidth(), toLine - fromLine + 1);
+    }
+
+    private void frameCaptured(FrameSnapshot snapshot) {
+        // Called in the decoding thread, png encoding and writing is done in the frame writer thread
+        SwingUtilities.invokeLater(() -> saveImageToFile(snapshot, selectedFolder));
+    }
+
+    private void saveImageToFile(FrameSnapshot snapshot, File toFolder) {
+        FrameSink sink = rawRecordingCheckBox.isSelected() ? getRawFrameRecorder(toFolder) : new PngFileSink(toFolder);
+        if (sink != null && !frameWriter.write(snapshot, sink)) {
+            System.out.println("Saving file skipped, " + frameWriter.getDroppedCount() + " frames dropped");
         }
     }
 
-    private String getNextFileName() {
-        return (new SimpleDateFormat("yyyy-MM-dd_HH.mm.ss.SSS")).format(new Date()) + ".png";
+    private FrameSink getRawFrameRecorder(File toFolder) {
+        if (rawFrameRecorder != null && !rawFrameRecorder.getFile().getParentFile().equals(toFolder.getAbsoluteFile())) {
+            closeRawFrameRecorder();
+        }
+        if (rawFrameRecorder == null) {
+            try {
+                File recordingFile = new File(toFolder.getAbsolutePath(), getNextRecordingFileName());
+                rawFrameRecorder = new RawFrameRecorder(recordingFile);
+                debugTextReceived("Recording to " + recordingFile.getAbsolutePath());
+            } catch (IOException e) {
+                System.out.println("Creating recording file failed: " + e.getMessage());
+            }
+        }
+        return rawFrameRecorder;
+    }
+
+    private void closeRawFrameRecorder() {
+        if (rawFrameRecorder != null) {
+            frameWriter.close(rawFrameRecorder);
+            rawFrameRecorder = null;
+        }
+    }
+
+    private String getNextRecordingFileName() {
+        return (new SimpleDateFormat("yyyy-MM-dd_HH.mm.ss.SSS")).format(new Date()) + RawFrameRecorder.FILE_EXTENSION;
+    }
+
+    private void imageSaved(int savedCount) {
+        SwingUtilities.invokeLater(()-> saveCountLabel.setText(" (" + savedCount + ")"));
     }
 
     private void debugTextReceived(String debugText) {
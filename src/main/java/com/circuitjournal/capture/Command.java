@@ -45,6 +45,7 @@ public class Command {
     byte[] receivedCommandData = commandBytes.toByteArray();
 
     if (!isChecksumValid(receivedCommandData)) {
+      imageCapture.commandChecksumFailed();
       imageCapture.printDebugData("" +
           "Command checksum failed!\n" +
           "1. Check baud rate\n" +
@@ -0,0 +1,150 @@
+package com.circuitjournal.capture;
+
+import java.nio.IntBuffer;
+
+/**
+ * Immutable copy of a finished frame that can be handed to other threads.
+ */
+public class FrameSnapshot {
+
+  private final int width;
+  private final int height;
+  private final PixelFormat pixelFormat;
+  private final int invalidPixelCount;
+  private final int[] argbPixels;
+  private final long captureTimeMillis;
+  private final long startNanos;
+  private final long lastByteNanos;
+  private final long endNanos;
+  private final long byteCount;
+
+
+  /**
+   * @param argbPixels packed 0xAARRGGBB pixels, line by line. The array is not copied
+   *                   and must not be modified afterwards.
+   */
+  public FrameSnapshot(
+      int width,
+      int height,
+      PixelFormat pixelFormat,
+      int invalidPixelCount,
+      int[] argbPixels,
+      long captureTimeMillis
+  ) {
+    this(width, height, pixelFormat, invalidPixelCount, argbPixels, captureTimeMillis, 0, 0, 0, 0);
+  }
+
+  /**
+   * @param startNanos System.nanoTime() when the new frame command was received
+   * @param lastByteNanos System.nanoTime() when the serial reader received the last byte of the frame
+   * @param endNanos System.nanoTime() when the last line was finished
+   * @param byteCount number of received bytes decoded into pixels of this frame
+   */
+  public FrameSnapshot(
+      int width,
+      int height,
+      PixelFormat pixelFormat,
+      int invalidPixelCount,
+      int[] argbPixels,
+      long captureTimeMillis,
+      long startNanos,
+      long lastByteNanos,
+      long endNanos,
+      long byteCount
+  ) {
+    if (argbPixels.length < width * height) {
+      throw new IllegalArgumentException("Expected " + (width * height) + " pixels, got " + argbPixels.length);
+    }
+    this.width = width;
+    this.height = height;
+    this.pixelFormat = pixelFormat;
+    this.invalidPixelCount = invalidPixelCount;
+    this.argbPixels = argbPixels;
+    this.captureTimeMillis = captureTimeMillis;
+    this.startNanos = startNanos;
+    this.lastByteNanos = lastByteNanos;
+    this.endNanos = endNanos;
+    this.byteCount = byteCount;
+  }
+
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  public PixelFormat getPixelFormat() {
+    return pixelFormat;
+  }
+
+  /**
+   * @return number of pixels that failed the parity check
+   */
+  public int getInvalidPixelCount() {
+    return invalidPixelCount;
+  }
+
+  /**
+   * @return read-only view of the packed 0xAARRGGBB pixels, line by line
+   */
+  public IntBuffer getArgbPixels() {
+    return IntBuffer.wrap(argbPixels, 0, width * height).asReadOnlyBuffer();
+  }
+
+  /**
+   * @return packed 0xAARRGGBB color
+   */
+  public int getPixelArgb(int x, int y) {
+    return argbPixels[y * width + x];
+  }
+
+  /**
+   * Copies all width * height pixels, line by line
+   */
+  public void copyArgbPixels(int[] destination, int destinationOffset) {
+    System.arraycopy(argbPixels, 0, destination, destinationOffset, width * height);
+  }
+
+  /**
+   * Copies all width * height pixels, line by line, from the buffer position
+   */
+  public void copyArgbPixels(IntBuffer destination) {
+    destination.put(argbPixels, 0, width * height);
+  }
+
+  public long getCaptureTimeMillis() {
+    return captureTimeMillis;
+  }
+
+  /**
+   * @return System.nanoTime() when the frame started, 0 if the frame was not captured live
+   */
+  public long getStartNanos() {
+    return startNanos;
+  }
+
+  /**
+   * @return System.nanoTime() when the last byte was received, 0 if the frame was not captured live
+   */
+  public long getLastByteNanos() {
+    return lastByteNanos;
+  }
+
+  /**
+   * @return System.nanoTime() when the frame was finished, 0 if the frame was not captured live
+   */
+  public long getEndNanos() {
+    return endNanos;
+  }
+
+  /**
+   * @return number of received bytes decoded into pixels of this frame, 0 if the frame was not captured live
+   */
+  public long getByteCount() {
+    return byteCount;
+  }
+
+}
@@ -1,10 +1,12 @@
 package com.circuitjournal.capture;
 
+import com.circuitjournal.metrics.CaptureMetrics;
 
-import java.io.ByteArrayOutputStream;
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntToLongFunction;
 
 /**
  * Created by indrek on 4.05.2016.
@@ -30,10 +32,26 @@ public class ImageCapture {
 
 
   private Command activeCommand = null;
-  private ByteArrayOutputStream pixelBytes = new ByteArrayOutputStream();
+  // Carry-over for a pixel that is split between two received chunks
+  private final byte [] pendingPixelBytes = new byte[2];
+  private int pendingPixelByteCount = 0;
+  // Wraps the last byte[] chunk, so arrays and buffers share one decoder
+  private ByteBuffer arrayView;
 
   private ImageFrame imageFrame;
   private PixelFormat pixelFormat = PixelFormat.PIXEL_RGB565;
+  private long frameStartNanos;
+  // Receive time of the chunk being decoded, per byte if the reader knows it
+  private long chunkReceivedNanos;
+  private IntToLongFunction chunkByteReceivedNanos;
+  // Buffer index of the first chunk byte, and of the last byte of the pixels being added
+  private int chunkStart;
+  private int decodeIndex;
+  private long frameByteCount;
+  private boolean frameFinished;
+  // Totals of finished frames, counted without a snapshot
+  private final AtomicLong capturedFrameCount = new AtomicLong();
+  private final AtomicLong capturedInvalidPixelCount = new AtomicLong();
 
 
 
@@ -41,187 +59,384 @@ public class ImageCapture {
     void imageCaptured(ImageFrame imageFrame, Integer lineNumber);
   }
 
+  public interface FrameCaptured {
+    /**
+     * Called once per finished frame in the decoding thread
+     */
+    void frameCaptured(FrameSnapshot snapshot);
+  }
+
   public interface DebugData {
     void debugDataReceived(String text);
   }
 
   private ImageCaptured imageCapturedCallback;
   private DebugData debugDataCallback;
+  private final List<FrameCaptured> frameCapturedListeners = new CopyOnWriteArrayList<>();
+  private final ImageFramePool framePool;
+  private final Runnable lineCaptured = this::lineCaptured;
+  private volatile CaptureMetrics metrics;
 
 
   public ImageCapture(ImageCaptured callback, DebugData debugCallback) {
+    this(callback, debugCallback, new ImageFramePool());
+  }
+
+  /**
+   * @param callback called for every finished line, can be null. Invalid pixels of the line above
+   * are fixed when a line is finished, so the line above has changed too.
+   * @param framePool frames are taken from the pool and published to it when the next frame starts
+   */
+  public ImageCapture(ImageCaptured callback, DebugData debugCallback, ImageFramePool framePool) {
     imageCapturedCallback = callback;
     debugDataCallback = debugCallback;
+    this.framePool = framePool;
     initNewFrame(MAX_W, MAX_H, PixelFormat.PIXEL_RGB565);
   }
 
   public void initNewFrame(int w, int h, PixelFormat pixelFormat) {
-    this.imageFrame = new ImageFrame(w, h, ()->{
-      imageCapturedCallback.imageCaptured(imageFrame, imageFrame.getCurrentLineIndex());
-    });
+    if (imageFrame != null) {
+      framePool.publish(imageFrame);
+    }
+    this.imageFrame = framePool.takeFrame(w, h, pixelFormat, lineCaptured);
     this.pixelFormat = pixelFormat;
+    frameStartNanos = System.nanoTime();
+    frameByteCount = 0;
+    frameFinished = false;
+  }
+
+  /**
+   * The snapshot is created once and shared by all listeners, only if there are listeners.
+   * Listeners can be added and removed from any thread.
+   */
+  public void addFrameCapturedListener(FrameCaptured listener) {
+    frameCapturedListeners.add(listener);
+  }
+
+  public void removeFrameCapturedListener(FrameCaptured listener) {
+    frameCapturedListeners.remove(listener);
+  }
+
+  /**
+   * Count finished frames, invalid pixels and command checksum failures in the metrics
+   *
+   * @param metrics null to stop counting
+   */
+  public void setMetrics(CaptureMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * @return number of finished frames, does not need a frame captured listener
+   */
+  public long getCapturedFrameCount() {
+    return capturedFrameCount.get();
+  }
+
+  /**
+   * @return number of pixels that failed the parity check in finished frames
+   */
+  public long getCapturedInvalidPixelCount() {
+    return capturedInvalidPixelCount.get();
+  }
+
+  /**
+   * Readers that keep a captured frame after the callback returns have to acquire it from the pool
+   */
+  public ImageFramePool getFramePool() {
+    return framePool;
   }
 
 
   public void addReceivedBytes(byte [] receivedBytes) {
-    for (byte receivedByte : receivedBytes) {
-      addReceivedByte(receivedByte);
+    addReceivedBytes(receivedBytes, 0, receivedBytes.length);
+  }
+
+  public void addReceivedBytes(byte [] receivedBytes, int offset, int length) {
+    chunkReceivedNanos = System.nanoTime();
+    chunkByteReceivedNanos = null;
+    chunkStart = offset;
+    if (arrayView == null || arrayView.array() != receivedBytes) {
+      arrayView = ByteBuffer.wrap(receivedBytes);
     }
+    decodeReceivedBytes(arrayView, offset, offset + length);
+  }
+
+  private void decodeReceivedBytes(ByteBuffer receivedBytes, int from, int to) {
+    int i = from;
+    while (i < to) {
+      if (activeCommand != null) {
+        addCommandByte(receivedBytes.get(i++));
+      } else if (receivedBytes.get(i) == START_COMMAND) {
+        startCommand();
+        i++;
+      } else {
+        int pixelDataEnd = findStartCommand(receivedBytes, i, to);
+        processPixelBytes(receivedBytes, i, pixelDataEnd);
+        i = pixelDataEnd;
+      }
+    }
+  }
+
+  /**
+   * Decodes the remaining bytes of the buffer, the buffer position is moved to its limit.
+   * Bytes are read with absolute gets, so heap, read-only and direct buffers are all
+   * decoded in place without copying.
+   */
+  public void addReceivedBytes(ByteBuffer receivedBytes) {
+    addReceivedBytes(receivedBytes, null);
+  }
+
+  /**
+   * @param receivedNanos System.nanoTime() when the serial reader received the byte at an index from
+   * the buffer position, see SerialReader.getReceivedNanos(int). Only called when a frame is finished.
+   */
+  public void addReceivedBytes(ByteBuffer receivedBytes, IntToLongFunction receivedNanos) {
+    chunkReceivedNanos = System.nanoTime();
+    chunkByteReceivedNanos = receivedNanos;
+    chunkStart = receivedBytes.position();
+    decodeReceivedBytes(receivedBytes, receivedBytes.position(), receivedBytes.limit());
+    receivedBytes.position(receivedBytes.limit());
   }
 
   public void addReceivedByte(byte receivedByte) {
+    chunkReceivedNanos = System.nanoTime();
+    chunkByteReceivedNanos = null;
     if (activeCommand == null) {
       if (receivedByte == START_COMMAND) {
-        activeCommand = new Command(this);
-        // Clear pixel buffer if command is received
-        pixelBytes.reset();
-
+        startCommand();
       } else {
         processPixelByte(receivedByte);
       }
-
     } else {
-      activeCommand.addByte(receivedByte);
-      if (activeCommand.process()) {
-        activeCommand = null;
-      }
+      addCommandByte(receivedByte);
+    }
+  }
+
+
+  private void lineCaptured() {
+    int lineIndex = imageFrame.getCurrentLineIndex();
+    if (imageCapturedCallback != null) {
+      imageCapturedCallback.imageCaptured(imageFrame, lineIndex);
+    }
+    if (!frameFinished && lineIndex == imageFrame.getLineCount() - 1) {
+      // Extra lines after the last one overwrite the last line, report the frame only once
+      frameFinished = true;
+      frameCaptured();
+    }
+  }
+
+  private void frameCaptured() {
+    capturedFrameCount.incrementAndGet();
+    capturedInvalidPixelCount.addAndGet(imageFrame.getInvalidPixelCount());
+    CaptureMetrics captureMetrics = metrics;
+    if (captureMetrics != null) {
+      captureMetrics.frameCaptured(imageFrame.getLineLength() * imageFrame.getLineCount(), imageFrame.getInvalidPixelCount());
+    }
+    if (frameCapturedListeners.isEmpty()) {
+      return;
+    }
+    FrameSnapshot snapshot = imageFrame.createSnapshot(
+        System.currentTimeMillis(), frameStartNanos, getLastByteReceivedNanos(), System.nanoTime(), frameByteCount);
+    for (FrameCaptured listener : frameCapturedListeners) {
+      listener.frameCaptured(snapshot);
     }
   }
 
 
+  /**
+   * Receive time of the last byte of the pixels being added. When a single pixel is decoded
+   * it is the time of the first pixel byte in this chunk, never of a byte received later.
+   */
+  private long getLastByteReceivedNanos() {
+    IntToLongFunction byteReceivedNanos = chunkByteReceivedNanos;
+    return byteReceivedNanos != null ? byteReceivedNanos.applyAsLong(decodeIndex - chunkStart) : chunkReceivedNanos;
+  }
+
+
   public void printDebugData(String message) {
     debugDataCallback.debugDataReceived(message);
   }
 
+  void commandChecksumFailed() {
+    CaptureMetrics captureMetrics = metrics;
+    if (captureMetrics != null) {
+      captureMetrics.commandChecksumFailed();
+    }
+  }
+
+
+
+  private void startCommand() {
+    activeCommand = new Command(this);
+    // Clear pixel buffer if command is received
+    pendingPixelByteCount = 0;
+  }
+
+  private void addCommandByte(byte receivedByte) {
+    activeCommand.addByte(receivedByte);
+    if (activeCommand.process()) {
+      activeCommand = null;
+    }
+  }
+
+  private int findStartCommand(ByteBuffer receivedBytes, int from, int to) {
+    for (int i = from; i < to; i++) {
+      if (receivedBytes.get(i) == START_COMMAND) {
+        return i;
+      }
+    }
+    return to;
+  }
+
 
+  private void processPixelBytes(ByteBuffer receivedBytes, int from, int to) {
+    int byteCount = pixelFormat.getByteCount();
+    int rowPixelByteCount = PixelConverter.getRowPixelByteCount(pixelFormat);
+    int i = from;
+    while (i < to) {
+      if (pendingPixelByteCount > 0 || i + byteCount > to) {
+        // Pixel is split between two received chunks
+        decodeIndex = Math.max(i - pendingPixelByteCount, chunkStart);
+        processPixelByte(receivedBytes.get(i++));
+        continue;
+      }
+      int maxPixelCount = Math.min((to - i) / rowPixelByteCount, imageFrame.getLineLength() - imageFrame.getCurrentColIndex());
+      int pixelCount = countValidPixels(receivedBytes, i, maxPixelCount);
+      if (pixelCount > 0) {
+        decodeIndex = i + pixelCount * rowPixelByteCount - 1;
+        frameByteCount += pixelCount * rowPixelByteCount;
+        i += rowPixelByteCount * imageFrame.addPixels(pixelFormat, receivedBytes, i, pixelCount);
+      } else {
+        // Pixel failed the parity check
+        decodeIndex = i;
+        i += decodePixel(receivedBytes.get(i), receivedBytes.get(i + 1));
+      }
+    }
+  }
 
+  /**
+   * @return number of pixels from the index that pass the parity check, all of them
+   * for formats without one
+   */
+  private int countValidPixels(ByteBuffer receivedBytes, int index, int maxPixelCount) {
+    int count = 0;
+    switch (pixelFormat) {
+      default:
+        return maxPixelCount;
+      case PIXEL_RGB565_WITH_PARITY_CHECK:
+        while (count < maxPixelCount
+            && isParityCheckRgbHighByte(receivedBytes.get(index + 2 * count))
+            && isParityCheckRgbLowByte(receivedBytes.get(index + 2 * count + 1))) {
+          count++;
+        }
+        return count;
+      case PIXEL_GRAYSCALE_WITH_PARITY_CHECK:
+        // Whole byte pairs only, the next pair has to start with the first byte
+        while (count + 1 < maxPixelCount
+            && isFirstGrayscaleParityFirst(receivedBytes.get(index + count) & 0xFF)
+            && !isFirstGrayscaleParityFirst(receivedBytes.get(index + count + 1) & 0xFF)) {
+          count += 2;
+        }
+        return count;
+    }
+  }
 
   private void processPixelByte(byte receivedByte) {
-    pixelBytes.write(receivedByte);
-    if (pixelBytes.size() >= pixelFormat.getByteCount()) {
-      imageFrame.addPixels(readAvailablePixels());
+    pendingPixelBytes[pendingPixelByteCount++] = receivedByte;
+    if (pendingPixelByteCount >= pixelFormat.getByteCount()) {
+      int consumedByteCount = decodePixel(pendingPixelBytes[0], pendingPixelBytes[1]);
+      if (consumedByteCount < pixelFormat.getByteCount()) {
+        // Keep the unused byte as the first byte of the next pixel
+        pendingPixelBytes[0] = pendingPixelBytes[1];
+        pendingPixelByteCount = 1;
+      } else {
+        pendingPixelByteCount = 0;
+      }
     }
   }
 
 
-  public List<Pixel> readAvailablePixels() {
+  /**
+   * Decodes one pixel starting at firstByte and adds it to the frame.
+   * @return number of bytes used. Parity check formats use only the first byte
+   * if the pair is out of sync, the second byte then starts the next pixel.
+   */
+  private int decodePixel(byte firstByte, byte secondByte) {
     switch (pixelFormat) {
       default:
       case PIXEL_RGB565: {
-        byte [] pixelDataBytes = pixelBytes.toByteArray();
-        pixelBytes.reset();
-        return Arrays.asList(parse2ByteRgbPixel(pixelDataBytes));
+        addPixel(parse2ByteRgbPixel(firstByte, secondByte), 0, 2);
+        return 2;
       }
       case PIXEL_RGB565_WITH_PARITY_CHECK: {
-        return Arrays.asList(readAvailableRgbPixelWithParityCheck());
+        return decodeRgbPixelWithParityCheck(firstByte, secondByte);
       }
       case PIXEL_GRAYSCALE: {
-        int rawPixelData = pixelBytes.toByteArray()[0] & 0xFF;
-        pixelBytes.reset();
-        return Arrays.asList(createGrayscalePixel(rawPixelData));
+        addGrayscalePixel(firstByte & 0xFF);
+        return 1;
       }
       case PIXEL_GRAYSCALE_WITH_PARITY_CHECK: {
-        return readAvailableGrayscalePixelWithParityCheck();
+        return decodeGrayscalePixelWithParityCheck(firstByte & 0xFF, secondByte & 0xFF);
       }
     }
   }
 
 
-  private Pixel parse2ByteRgbPixel(byte [] pixelDataBytes) {
-    int rawPixelData = get2ByteInteger_H_L(pixelDataBytes);
-    // rrrr rggg gggb bbbb
-    int r = (rawPixelData >> 8) & 0xF8;
-    int g = (rawPixelData >> 3) & 0xFC;
-    int b = (rawPixelData << 3) & 0xF8;
-    return new Pixel(r, g, b);
+  private int parse2ByteRgbPixel(byte highByte, byte lowByte) {
+    // rrrr rggg gggb bbbb, channels expanded to 8 bits
+    return PixelConverter.rgb565ToArgb(highByte, lowByte);
   }
 
 
-  private Pixel readAvailableRgbPixelWithParityCheck() {
-    byte [] pixelDataBytes = pixelBytes.toByteArray();
-    boolean isFirstByteHigh = isParityCheckRgbHighByte(pixelDataBytes[0]);
-    boolean isSecondByteLow = isParityCheckRgbLowByte(pixelDataBytes[1]);
+  private int decodeRgbPixelWithParityCheck(byte firstByte, byte secondByte) {
+    boolean isFirstByteHigh = isParityCheckRgbHighByte(firstByte);
+    boolean isSecondByteLow = isParityCheckRgbLowByte(secondByte);
 
     if (isFirstByteHigh && isSecondByteLow) {
-      pixelBytes.reset();
-      return parse2ByteRgbPixel(pixelDataBytes);
+      addPixel(parse2ByteRgbPixel(firstByte, secondByte), 0, 2);
+      return 2;
 
     } else if (!isFirstByteHigh) {
-      byte [] fixedPixedDataBytes = new byte[2];
-      fixedPixedDataBytes[0] = 0; // RRRRRGGG
-      fixedPixedDataBytes[1] = pixelDataBytes[0]; // GGGBBBBB
-      pixelBytes.reset();
-      pixelBytes.write(pixelDataBytes[1]);
-      Pixel fixedPixel = parse2ByteRgbPixel(fixedPixedDataBytes);
+      // RRRRRGGG missing, first byte is GGGBBBBB
       // Only blue is valid if only second byte is valid
-      fixedPixel.invalidateR();
-      fixedPixel.invalidateG();
-      return fixedPixel;
+      addPixel(parse2ByteRgbPixel((byte) 0, firstByte), ImageFrame.INVALID_R | ImageFrame.INVALID_G, 1);
+      return 1;
 
     } else {
-      byte [] fixedPixedDataBytes = new byte[2];
-      fixedPixedDataBytes[0] = pixelDataBytes[0]; // RRRRRGGG
-      fixedPixedDataBytes[1] = 0; // GGGBBBBB
-      pixelBytes.reset();
-      pixelBytes.write(pixelDataBytes[1]);
-      Pixel fixedPixel = parse2ByteRgbPixel(fixedPixedDataBytes);
+      // GGGBBBBB missing
       // Only red is valid if only first byte is valid
-      fixedPixel.invalidateG();
-      fixedPixel.invalidateB();
-      return fixedPixel;
+      addPixel(parse2ByteRgbPixel(firstByte, (byte) 0), ImageFrame.INVALID_G | ImageFrame.INVALID_B, 1);
+      return 1;
     }
   }
 
   private boolean isParityCheckRgbHighByte(byte pixelByte) {
     // RRRRRGGG
     // Pixel Byte H: odd number of bits under H_BYTE_PARITY_CHECK and H_BYTE_PARITY_INVERT
-    return ((pixelByte & H_BYTE_PARITY_CHECK) > 0) != ((pixelByte & H_BYTE_PARITY_INVERT) > 0);
+    return Integer.bitCount(pixelByte & (H_BYTE_PARITY_CHECK | H_BYTE_PARITY_INVERT)) == 1;
   }
 
   private boolean isParityCheckRgbLowByte(byte pixelByte) {
     // GGGBBBBB
     // Pixel Byte L: even number of bits under L_BYTE_PARITY_CHECK and L_BYTE_PARITY_INVERT
-    return ((pixelByte & L_BYTE_PARITY_CHECK) > 0) == ((pixelByte & L_BYTE_PARITY_INVERT) > 0);
-  }
-
-  private int get2ByteInteger_H_L(byte [] data) {
-    if (data.length > 1) {
-      return ((data[0] & 0xFF) << 8) + (data[1] & 0xFF);
-    } else {
-      return 0;
-    }
-  }
-
-  private int get2ByteInteger_L_H(byte [] data) {
-    if (data.length > 1) {
-      return ((data[1] & 0xFF) << 8) + (data[0] & 0xFF);
-    } else {
-      return 0;
-    }
+    return Integer.bitCount(pixelByte & (L_BYTE_PARITY_CHECK | L_BYTE_PARITY_INVERT)) != 1;
   }
 
-  private List<Pixel> readAvailableGrayscalePixelWithParityCheck() {
-    List<Pixel> pixels = new ArrayList<>();
-    int rawPixelData1 = pixelBytes.toByteArray()[0] & 0xFF;
-    int rawPixelData2 = pixelBytes.toByteArray()[1] & 0xFF;
-    pixelBytes.reset();
-
-    if (isFirstGrayscaleParityFirst(rawPixelData1)) {
-      pixels.add(createGrayscalePixel(rawPixelData1));
-    } else {
-      pixels.add(createInvalidGrayscalePixel());
-      pixels.add(createGrayscalePixel(rawPixelData1));
-      pixelBytes.write(rawPixelData2);
-      return pixels;
+  private int decodeGrayscalePixelWithParityCheck(int rawPixelData1, int rawPixelData2) {
+    if (!isFirstGrayscaleParityFirst(rawPixelData1)) {
+      addInvalidGrayscalePixel();
+      addGrayscalePixel(rawPixelData1);
+      return 1;
     }
+    addGrayscalePixel(rawPixelData1);
 
     if (!isFirstGrayscaleParityFirst(rawPixelData2)) {
-      pixels.add(createGrayscalePixel(rawPixelData2));
-      return pixels;
+      addGrayscalePixel(rawPixelData2);
+      return 2;
     } else {
-      pixels.add(createInvalidGrayscalePixel());
-      pixelBytes.write(rawPixelData2);
-      return pixels;
+      addInvalidGrayscalePixel();
+      return 1;
     }
   }
 
@@ -229,12 +444,22 @@ public class ImageCapture {
     return (rawPixelData & 1) == 0;
   }
 
-  private Pixel createGrayscalePixel(int c) {
-    return new Pixel(c, c, c);
+  private void addGrayscalePixel(int c) {
+    addPixel(PixelConverter.grayscaleToArgb(c), 0, 1);
+  }
+
+  private void addInvalidGrayscalePixel() {
+    // Stands in for a missing byte
+    addPixel(0, ImageFrame.INVALID_RGB, 0);
   }
 
-  private Pixel createInvalidGrayscalePixel() {
-    return new Pixel();
+  /**
+   * @param byteCount received bytes the pixel was decoded from, counted before adding
+   * because adding the last pixel finishes the frame
+   */
+  private void addPixel(int rgb, int invalidChannelFlags, int byteCount) {
+    frameByteCount += byteCount;
+    imageFrame.addPixel(rgb, invalidChannelFlags);
   }
 
 
@@ -1,31 +1,80 @@
 package com.circuitjournal.capture;
 
-import java.awt.Color;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * Created by indrek on 7.05.2016.
  */
 public class ImageFrame {
 
+  // Invalid color channel flags for pixels that failed the parity check
+  public static final int INVALID_R = 0b100;
+  public static final int INVALID_G = 0b010;
+  public static final int INVALID_B = 0b001;
+  public static final int INVALID_RGB = INVALID_R | INVALID_G | INVALID_B;
 
-  private Pixel[][] pixelMatrix;
+  private static final int ALPHA_OPAQUE = 0xFF000000;
+  private static final int ARGB_BLACK = ALPHA_OPAQUE;
+
+
+  // Packed 0xAARRGGBB, invalid channels are stored as 0 until the line below is finished and they are fixed
+  private int[] pixels;
+  private byte[] invalidChannels;
+  private int w;
+  private int h;
+  private PixelFormat pixelFormat;
+  private int filledPixelCount;
+  private int invalidPixelCount;
   private int lineIndex;
   private int colIndex;
   private Runnable lineCaptured;
 
+  // Readers holding the frame, guarded by ImageFramePool
+  int readerCount;
+  // Incremented under the ImageFramePool lock every time the frame starts a new image
+  private volatile int generation;
+
 
-  public ImageFrame(int w, int h, Runnable lineCaptured) {
-    pixelMatrix = new Pixel[h][w];
+  public ImageFrame(int w, int h, PixelFormat pixelFormat, Runnable lineCaptured) {
+    reset(w, h, pixelFormat, lineCaptured);
+  }
+
+  /**
+   * Starts a new image in this frame, the pixel arrays are reused if they are large enough
+   */
+  void reset(int w, int h, PixelFormat pixelFormat, Runnable lineCaptured) {
+    if (pixels == null || pixels.length < w * h) {
+      this.pixels = new int[w * h];
+      this.invalidChannels = new byte[w * h];
+    }
+    this.w = w;
+    this.h = h;
+    this.pixelFormat = pixelFormat;
+    filledPixelCount = 0;
+    invalidPixelCount = 0;
     lineIndex = 0;
     colIndex = 0;
     this.lineCaptured = lineCaptured;
+    generation++;
   }
 
 
   public void newLine() {
+    // Line ended early, don't leave pixels of a previous image in it
+    int skippedStart = Math.max(lineIndex * w + colIndex, filledPixelCount);
+    int lineEnd = (lineIndex + 1) * w;
+    if (skippedStart < lineEnd) {
+      Arrays.fill(pixels, skippedStart, lineEnd, 0);
+      Arrays.fill(invalidChannels, skippedStart, lineEnd, (byte) 0);
+    }
+    // Line above has all four neighbours now, the last line has no line below
+    if (lineIndex > 0) {
+      fixInvalidPixels(lineIndex - 1);
+    }
+    if (lineIndex == getLineCount() - 1) {
+      fixInvalidPixels(lineIndex);
+    }
     lineCaptured.run();
     if (lineIndex < getLineCount() - 1) {
       lineIndex ++;
@@ -33,31 +82,82 @@ public class ImageFrame {
     colIndex = 0;
   }
 
-  public void addPixels(List<Pixel> pixels) {
-    for (Pixel pixel : pixels) {
-      addPixel(pixel);
+  /**
+   * @param rgb packed 0xRRGGBB color
+   */
+  public void addPixel(int rgb) {
+    addPixel(rgb, 0);
+  }
+
+  /**
+   * @param rgb packed 0xRRGGBB color
+   * @param invalidChannelFlags combination of INVALID_R, INVALID_G and INVALID_B
+   */
+  public void addPixel(int rgb, int invalidChannelFlags) {
+    int index = lineIndex * w + colIndex;
+    pixels[index] = ALPHA_OPAQUE | (rgb & ~getChannelMask(invalidChannelFlags));
+    invalidChannels[index] = (byte) invalidChannelFlags;
+    if (invalidChannelFlags != 0) {
+      invalidPixelCount++;
+    }
+    colIndex++;
+    if (index >= filledPixelCount) {
+      filledPixelCount = index + 1;
+    }
+    if (colIndex >= w) {
+      newLine();
     }
   }
 
-  public void addPixel(Pixel pixel) {
-    if (lineIndex < pixelMatrix.length) {
-      if (lineIndex < pixelMatrix.length) {
-        pixelMatrix[lineIndex][colIndex] = pixel;
-        colIndex++;
-      }
+
+  /**
+   * Adds pixels of a format PixelConverter converts in rows, at most to the end of the current line
+   * @return number of pixels added
+   */
+  int addPixels(PixelFormat format, ByteBuffer source, int sourceIndex, int maxPixelCount) {
+    int index = lineIndex * w + colIndex;
+    int count = Math.min(maxPixelCount, w - colIndex);
+    PixelConverter.convertRow(format, source, sourceIndex, pixels, index, count);
+    pixelsAdded(index, count);
+    return count;
+  }
+
+  private void pixelsAdded(int index, int count) {
+    Arrays.fill(invalidChannels, index, index + count, (byte) 0);
+    colIndex += count;
+    if (index + count > filledPixelCount) {
+      filledPixelCount = index + count;
     }
-    if (colIndex >= pixelMatrix[lineIndex].length) {
+    if (colIndex >= w) {
       newLine();
     }
   }
 
 
+  /**
+   * @return changes every time the frame is reused for a new image, see ImageFramePool.acquire()
+   */
+  public int getGeneration() {
+    return generation;
+  }
+
   public int getLineLength() {
-    return pixelMatrix.length > 0 ? pixelMatrix[0].length : 0;
+    return w;
   }
 
   public int getLineCount() {
-    return pixelMatrix.length;
+    return h;
+  }
+
+  public PixelFormat getPixelFormat() {
+    return pixelFormat;
+  }
+
+  /**
+   * @return number of received pixels that failed the parity check
+   */
+  public int getInvalidPixelCount() {
+    return invalidPixelCount;
   }
 
   public int getCurrentLineIndex() {
@@ -68,34 +168,104 @@ public class ImageFrame {
     return colIndex;
   }
 
-  public Color getPixelColor(int x, int y) {
-    Pixel pixel = getPixel(x, y);
-    if (pixel != null) {
-      if (pixel.hasInvalidColors()) {
-        fixPixel(pixel, x, y);
+  /**
+   * @return packed 0xAARRGGBB color, black if the pixel is not received yet.
+   * Invalid pixels are fixed when the line below them is finished, until then their invalid channels are 0.
+   */
+  public int getPixelArgb(int x, int y) {
+    if (!isPixelReceived(x, y)) {
+      return ARGB_BLACK;
+    }
+    return pixels[y * w + x];
+  }
+
+  /**
+   * Copies one line as packed 0xAARRGGBB colors, pixels not received yet are black.
+   */
+  public void copyLineArgb(int y, int[] destination, int destinationOffset, int length) {
+    int lineStart = y * w;
+    int receivedCount = Math.max(0, Math.min(length, filledPixelCount - lineStart));
+    System.arraycopy(pixels, lineStart, destination, destinationOffset, receivedCount);
+    Arrays.fill(destination, destinationOffset + receivedCount, destinationOffset + length, ARGB_BLACK);
+  }
+
+  /**
+   * Copy of the frame as it is now, invalid pixels are fixed and missing pixels are black
+   */
+  public FrameSnapshot createSnapshot(long captureTimeMillis) {
+    return createSnapshot(captureTimeMillis, 0, 0, 0, 0);
+  }
+
+  /**
+   * @see FrameSnapshot#FrameSnapshot(int, int, PixelFormat, int, int[], long, long, long, long, long)
+   */
+  public FrameSnapshot createSnapshot(long captureTimeMillis, long startNanos, long lastByteNanos, long endNanos, long byteCount) {
+    int[] argbPixels = new int[w * h];
+    for (int y = 0; y < h; y++) {
+      copyLineArgb(y, argbPixels, y * w, w);
+    }
+    return new FrameSnapshot(w, h, pixelFormat, invalidPixelCount, argbPixels, captureTimeMillis,
+        startNanos, lastByteNanos, endNanos, byteCount);
+  }
+
+  /**
+   * Fixes invalid pixels of a line from the four surrounding pixels, once the line below is finished.
+   * The line above and the pixel on the left are fixed already, the line below and the pixel
+   * on the right are averaged as received.
+   */
+  private void fixInvalidPixels(int y) {
+    int lineStart = y * w;
+    int lineEnd = Math.min(lineStart + w, filledPixelCount);
+    for (int index = lineStart; index < lineEnd; index++) {
+      if (invalidChannels[index] != 0) {
+        fixPixel(index, index - lineStart, y);
+      }
+    }
+  }
+
+  private void fixPixel(int index, int x, int y) {
+    int totalR = 0;
+    int totalG = 0;
+    int totalB = 0;
+    int surroundingCount = 0;
+    for (int i = 0; i < 4; i++) {
+      int sx = x + (i == 2 ? -1 : i == 3 ? 1 : 0);
+      int sy = y + (i == 0 ? -1 : i == 1 ? 1 : 0);
+      if (isPixelReceived(sx, sy)) {
+        int surroundingIndex = sy * w + sx;
+        totalR += getChannel(surroundingIndex, 16, INVALID_R);
+        totalG += getChannel(surroundingIndex, 8, INVALID_G);
+        totalB += getChannel(surroundingIndex, 0, INVALID_B);
+        surroundingCount++;
       }
-      return pixel.getColor();
+    }
+    if (surroundingCount == 0) {
+      setPixel(index, 0, 0, 0);
     } else {
-      return Color.BLACK;
+      setPixel(index, totalR / surroundingCount, totalG / surroundingCount, totalB / surroundingCount);
     }
   }
 
-  private void fixPixel(Pixel pixel, int x, int y) {
-    Collection<Pixel> surroundingPixels = new ArrayList<>();
-    Pixel topPixel = getPixel(x, y-1);
-    if (topPixel != null) surroundingPixels.add(topPixel);
-    Pixel bottomPixel = getPixel(x, y+1);
-    if (bottomPixel != null) surroundingPixels.add(bottomPixel);
-    Pixel leftPixel = getPixel(x-1, y);
-    if (leftPixel != null) surroundingPixels.add(leftPixel);
-    Pixel rightPixel = getPixel(x+1, y);
-    if (rightPixel != null) surroundingPixels.add(rightPixel);
-    pixel.fixColors(surroundingPixels);
+  // Invalid channels count as -1 when averaged, same as unfixed pixels always did
+  private int getChannel(int index, int shift, int invalidFlag) {
+    return (invalidChannels[index] & invalidFlag) != 0 ? -1 : (pixels[index] >> shift) & 0xFF;
+  }
+
+  private void setPixel(int index, int r, int g, int b) {
+    int invalidChannelFlags = (r < 0 ? INVALID_R : 0) | (g < 0 ? INVALID_G : 0) | (b < 0 ? INVALID_B : 0);
+    pixels[index] = ALPHA_OPAQUE | (Math.max(r, 0) << 16) | (Math.max(g, 0) << 8) | Math.max(b, 0);
+    invalidChannels[index] = (byte) invalidChannelFlags;
+  }
+
+  private int getChannelMask(int invalidChannelFlags) {
+    return ((invalidChannelFlags & INVALID_R) != 0 ? 0xFF0000 : 0)
+        | ((invalidChannelFlags & INVALID_G) != 0 ? 0x00FF00 : 0)
+        | ((invalidChannelFlags & INVALID_B) != 0 ? 0x0000FF : 0);
   }
 
-  private Pixel getPixel(int x, int y) {
-    return x >= 0 && x < getLineLength() &&
-            y >= 0 && y < getLineCount() ? pixelMatrix[y][x] : null;
+  private boolean isPixelReceived(int x, int y) {
+    return x >= 0 && x < w &&
+            y >= 0 && y < h && y * w + x < filledPixelCount;
   }
 
 
@@ -0,0 +1,118 @@
+package com.circuitjournal.capture;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reuses image frames between the decoding thread and the threads that read them.
+ *
+ * The decoder takes a frame with takeFrame(), fills it and hands it over with publish().
+ * Readers retain a frame with acquire() or acquireLatest() and give it back with release().
+ * A reader that keeps a frame reference without holding the frame also keeps its generation,
+ * acquire() checks it to tell the image the reader saw from a newer one in the same frame.
+ * A frame is reused only when it is not being written, not the latest published frame
+ * and not held by any reader, so a reader never sees a frame being overwritten.
+ * With one frame held by a reader the default three frames are enough, the pool grows
+ * only if readers hold on to more frames.
+ */
+public class ImageFramePool {
+
+  public static final int DEFAULT_SIZE = 3;
+
+  private final List<ImageFrame> frames = new ArrayList<>();
+  private final int size;
+  private ImageFrame writingFrame;
+  private ImageFrame latestFrame;
+
+
+  public ImageFramePool() {
+    this(DEFAULT_SIZE);
+  }
+
+  public ImageFramePool(int size) {
+    this.size = size;
+  }
+
+
+  /**
+   * Called by the decoding thread, the previous frame has to be published first.
+   * Never blocks, a new frame is created if all frames are in use.
+   */
+  public synchronized ImageFrame takeFrame(int w, int h, PixelFormat pixelFormat, Runnable lineCaptured) {
+    ImageFrame frame = findFreeFrame();
+    if (frame == null) {
+      frame = new ImageFrame(w, h, pixelFormat, lineCaptured);
+      frames.add(frame);
+    } else {
+      frame.reset(w, h, pixelFormat, lineCaptured);
+    }
+    writingFrame = frame;
+    return frame;
+  }
+
+  /**
+   * Called by the decoding thread when it stops writing the frame, finished or not.
+   */
+  public synchronized void publish(ImageFrame frame) {
+    if (writingFrame == frame) {
+      writingFrame = null;
+    }
+    latestFrame = frame;
+  }
+
+  /**
+   * Retains the frame until release() if it still holds the same image.
+   *
+   * @param generation ImageFrame.getGeneration() when the reader got the frame
+   * @return false if the frame is already reused for a newer image
+   */
+  public synchronized boolean acquire(ImageFrame frame, int generation) {
+    if (frame.getGeneration() != generation) {
+      return false;
+    }
+    frame.readerCount++;
+    return true;
+  }
+
+  /**
+   * @return latest published frame retained until release(), null if nothing is published yet
+   */
+  public synchronized ImageFrame acquireLatest() {
+    if (latestFrame == null) {
+      return null;
+    }
+    latestFrame.readerCount++;
+    return latestFrame;
+  }
+
+  public synchronized void release(ImageFrame frame) {
+    if (frame.readerCount > 0) {
+      frame.readerCount--;
+    }
+  }
+
+  /**
+   * @return number of frames allocated, more than the pool size if readers held too many frames
+   */
+  public synchronized int getFrameCount() {
+    return frames.size();
+  }
+
+  public int getSize() {
+    return size;
+  }
+
+
+  private ImageFrame findFreeFrame() {
+    if (frames.size() < size) {
+      return null;
+    }
+    for (ImageFrame frame : frames) {
+      if (frame != writingFrame && frame != latestFrame && frame.readerCount == 0) {
+        return frame;
+      }
+    }
+    return null;
+  }
+
+}
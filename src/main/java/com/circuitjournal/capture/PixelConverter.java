@@ -0,0 +1,76 @@
+package com.circuitjournal.capture;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts received pixel bytes to packed 0xAARRGGBB colors with lookup tables.
+ *
+ * RGB565 channels are expanded to 8 bits by repeating their top bits in the low bits,
+ * so full intensity is 0xFF instead of 0xF8 and black stays 0.
+ */
+final class PixelConverter {
+
+  private static final int ALPHA_OPAQUE = 0xFF000000;
+
+  // Indexed by (high byte << 8) | low byte: RRRRRGGG GGGBBBBB
+  private static final int[] RGB565_TO_ARGB = new int[1 << 16];
+  private static final int[] GRAYSCALE_TO_ARGB = new int[1 << 8];
+
+  static {
+    for (int i = 0; i < RGB565_TO_ARGB.length; i++) {
+      int r5 = (i >> 11) & 0x1F;
+      int g6 = (i >> 5) & 0x3F;
+      int b5 = i & 0x1F;
+      int r = (r5 << 3) | (r5 >> 2);
+      int g = (g6 << 2) | (g6 >> 4);
+      int b = (b5 << 3) | (b5 >> 2);
+      RGB565_TO_ARGB[i] = ALPHA_OPAQUE | (r << 16) | (g << 8) | b;
+    }
+    for (int c = 0; c < GRAYSCALE_TO_ARGB.length; c++) {
+      GRAYSCALE_TO_ARGB[c] = ALPHA_OPAQUE | (c << 16) | (c << 8) | c;
+    }
+  }
+
+
+  private PixelConverter() {
+  }
+
+
+  static int rgb565ToArgb(byte highByte, byte lowByte) {
+    return RGB565_TO_ARGB[((highByte & 0xFF) << 8) | (lowByte & 0xFF)];
+  }
+
+  static int grayscaleToArgb(int c) {
+    return GRAYSCALE_TO_ARGB[c & 0xFF];
+  }
+
+  /**
+   * @return received bytes per pixel in a row. Parity check grayscale sends one pixel per byte,
+   * the byte pairs are only for the parity check.
+   */
+  static int getRowPixelByteCount(PixelFormat pixelFormat) {
+    return isGrayscale(pixelFormat) ? 1 : 2;
+  }
+
+  /**
+   * Converts pixelCount pixels read with absolute gets, so read-only and direct buffers are converted
+   * in place. Pixels of the parity check formats have to pass the parity check before they are converted.
+   */
+  static void convertRow(PixelFormat pixelFormat, ByteBuffer source, int sourceIndex, int[] destination, int destinationOffset, int pixelCount) {
+    if (isGrayscale(pixelFormat)) {
+      for (int i = 0; i < pixelCount; i++) {
+        destination[destinationOffset + i] = GRAYSCALE_TO_ARGB[source.get(sourceIndex + i) & 0xFF];
+      }
+    } else {
+      for (int i = 0; i < pixelCount; i++) {
+        int s = sourceIndex + 2 * i;
+        destination[destinationOffset + i] = RGB565_TO_ARGB[((source.get(s) & 0xFF) << 8) | (source.get(s + 1) & 0xFF)];
+      }
+    }
+  }
+
+  private static boolean isGrayscale(PixelFormat pixelFormat) {
+    return pixelFormat == PixelFormat.PIXEL_GRAYSCALE || pixelFormat == PixelFormat.PIXEL_GRAYSCALE_WITH_PARITY_CHECK;
+  }
+
+}
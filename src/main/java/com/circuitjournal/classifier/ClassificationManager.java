@@ -1,5 +1,8 @@
 package com.circuitjournal.classifier;
 
+import com.circuitjournal.capture.FrameSnapshot;
+import com.circuitjournal.metrics.CaptureMetrics;
+import com.circuitjournal.metrics.LatencyTrace;
 import org.apache.commons.lang3.StringUtils;
 
 import java.io.File;
@@ -10,10 +13,18 @@ import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 
 /**
- * Manages waste classification tracking and statistics
+ * Manages waste classification tracking and statistics.
+ *
+ * Results complete on the worker threads in any order, they are handled one at a time
+ * in the order the images were submitted. Saving the statistics and the classification
+ * callback run on a separate thread, so slow disk or serial writes do not hold up the workers.
  */
 public class ClassificationManager {
     
@@ -26,15 +37,23 @@ public class ClassificationManager {
     private static final int CONSECUTIVE_THRESHOLD = 2;
     
     // Current classification status
-    private String currentClassification = null;
-    private boolean classificationFinalized = false;
+    private volatile String currentClassification = null;
+    private volatile boolean classificationFinalized = false;
+    
+    // Results that completed before the results of earlier images, guarded by this
+    private final AtomicLong submittedCount = new AtomicLong();
+    private final Map<Long, Runnable> earlyResults = new HashMap<>();
+    private long nextResultSequence = 0;
     
     // Classification results file
     private File statsFile;
     private static final String DEFAULT_STATS_FILENAME = "waste_classification_stats.csv";
     
     private final PythonClassifierBridge classifier;
-    private Consumer<String> classificationCallback;
+    private volatile Consumer<String> classificationCallback;
+    private volatile CaptureMetrics metrics;
+    // Finalized classifications in decision order, outside the result lock
+    private final ThreadPoolExecutor finalizedExecutor;
     
     /**
      * Create a classification manager
@@ -44,6 +63,16 @@ public class ClassificationManager {
      */
     public ClassificationManager(PythonClassifierBridge classifier, String statsDirectory) {
         this.classifier = classifier;
+        this.finalizedExecutor = new ThreadPoolExecutor(
+                1, 1,
+                30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                (runnable) -> {
+                    Thread thread = new Thread(runnable, "classification-finalized");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.finalizedExecutor.allowCoreThreadTimeOut(true);
         
         // Initialize counters for all categories
         for (String category : PythonClassifierBridge.CATEGORIES) {
@@ -73,35 +102,94 @@ public class ClassificationManager {
     }
     
     /**
-     * Set a callback to be notified when classification is finalized
+     * Set a callback to be notified when classification is finalized.
+     * Called from a separate thread, one classification at a time. Results handled
+     * before the callback resets the classification do not start a new decision.
      */
     public void setClassificationCallback(Consumer<String> callback) {
         this.classificationCallback = callback;
     }
     
+    /**
+     * Trace the latency of each classified frame from its last received byte to the callback
+     *
+     * @param metrics null to stop tracing
+     */
+    public void setMetrics(CaptureMetrics metrics) {
+        this.metrics = metrics;
+    }
+    
     /**
      * Classify an image and update the statistics
      * 
      * @param imagePath Path to the image
      */
     public void classifyImage(String imagePath) {
-        classifier.classifyImage(imagePath).thenAccept(result -> {
-            boolean success = (boolean) result.getOrDefault("success", false);
-            
-            if (success) {
-                String category = (String) result.get("category");
-                updateClassification(category);
-            } else {
-                String error = (String) result.getOrDefault("error", "Unknown error");
-                System.err.println("Classification failed: " + error);
-            }
-        });
+        long sequence = submittedCount.getAndIncrement();
+        classifier.classifyImage(imagePath).thenAccept((result) -> resultReceived(sequence, result, null));
+    }
+    
+    /**
+     * Classify a captured frame without saving it to a file and update the statistics
+     * 
+     * @param frame Captured frame
+     */
+    public void classifyFrame(FrameSnapshot frame) {
+        LatencyTrace trace = null;
+        if (metrics != null) {
+            trace = new LatencyTrace();
+            trace.mark(LatencyTrace.Stage.RECEIVED, frame.getLastByteNanos());
+            trace.mark(LatencyTrace.Stage.DECODED, frame.getEndNanos());
+            trace.mark(LatencyTrace.Stage.CLASSIFY_REQUESTED);
+        }
+        LatencyTrace frameTrace = trace;
+        long sequence = submittedCount.getAndIncrement();
+        classifier.classifyFrame(frame).thenAccept((result) -> resultReceived(sequence, result, frameTrace));
+    }
+    
+    /**
+     * Holds the result until the results of all earlier images are handled.
+     * Every request completes, failed and skipped ones with an error result, so no result waits for good.
+     */
+    private synchronized void resultReceived(long sequence, Map<String, Object> result, LatencyTrace trace) {
+        if (trace != null && Boolean.TRUE.equals(result.get("success"))) {
+            trace.mark(LatencyTrace.Stage.CLASSIFIED);
+        }
+        earlyResults.put(sequence, () -> classificationReceived(result, trace));
+        Runnable nextResult;
+        while ((nextResult = earlyResults.remove(nextResultSequence)) != null) {
+            nextResultSequence++;
+            nextResult.run();
+        }
+    }
+    
+    /**
+     * @param trace latency trace of the classified frame, null if not traced
+     */
+    private void classificationReceived(Map<String, Object> result, LatencyTrace trace) {
+        boolean success = (boolean) result.getOrDefault("success", false);
+        
+        boolean finalized = false;
+        if (success) {
+            String category = (String) result.get("category");
+            finalized = updateClassification(category, trace);
+        } else {
+            String error = (String) result.getOrDefault("error", "Unknown error");
+            System.err.println("Classification failed: " + error);
+        }
+        
+        // A finalized trace is recorded once the callback has replied
+        if (!finalized) {
+            recordTrace(trace);
+        }
     }
     
     /**
      * Update classification with a new result
+     *
+     * @return true if the result finalized the classification
      */
-    private void updateClassification(String category) {
+    private boolean updateClassification(String category, LatencyTrace trace) {
         recentClassifications.add(category);
         if (recentClassifications.size() > MAX_RECENT_CLASSIFICATIONS) {
             recentClassifications.remove(0);
@@ -110,9 +198,11 @@ public class ClassificationManager {
         // Check if we should finalize the classification
         if (!classificationFinalized) {
             if (checkConsecutiveMatches() || checkTotalMatches()) {
-                finalizeClassification(category);
+                finalizeClassification(category, trace);
+                return true;
             }
         }
+        return false;
     }
     
     /**
@@ -152,29 +242,49 @@ public class ClassificationManager {
     }
     
     /**
-     * Finalize the classification decision
+     * Finalize the classification decision, the statistics are saved and listeners
+     * notified on the finalized thread
      */
-    private void finalizeClassification(String category) {
+    private void finalizeClassification(String category, LatencyTrace trace) {
+        if (trace != null) {
+            trace.mark(LatencyTrace.Stage.DECIDED);
+        }
         this.currentClassification = category;
         this.classificationFinalized = true;
         
         // Update category count
-        int count = categoryCounts.getOrDefault(category, 0);
-        categoryCounts.put(category, count + 1);
+        int count = categoryCounts.getOrDefault(category, 0) + 1;
+        categoryCounts.put(category, count);
         
+        finalizedExecutor.execute(() -> publishClassification(category, count, trace));
+    }
+    
+    private void publishClassification(String category, int count, LatencyTrace trace) {
         // Save to file
-        saveStats(category);
+        saveStats(category, count);
         
         // Notify listeners
-        if (classificationCallback != null) {
-            classificationCallback.accept(category);
+        Consumer<String> callback = classificationCallback;
+        if (callback != null) {
+            callback.accept(category);
+            if (trace != null) {
+                trace.mark(LatencyTrace.Stage.REPLIED);
+            }
+        }
+        recordTrace(trace);
+    }
+    
+    private void recordTrace(LatencyTrace trace) {
+        CaptureMetrics captureMetrics = metrics;
+        if (trace != null && captureMetrics != null) {
+            captureMetrics.getFrameLatencyTraces().record(trace);
         }
     }
     
     /**
      * Reset the current classification
      */
-    public void resetClassification() {
+    public synchronized void resetClassification() {
         this.currentClassification = null;
         this.classificationFinalized = false;
         this.recentClassifications.clear();
@@ -204,7 +314,7 @@ public class ClassificationManager {
     /**
      * Save classification statistics to file
      */
-    private void saveStats(String category) {
+    private void saveStats(String category, int count) {
         if (statsFile == null) {
             return;
         }
@@ -214,7 +324,7 @@ public class ClassificationManager {
             String timestamp = dateFormat.format(new Date());
             
             writer.write(String.format("%s,%s,%d\n", 
-                timestamp, category, categoryCounts.get(category)));
+                timestamp, category, count));
                 
         } catch (IOException e) {
             System.err.println("Failed to save stats: " + e.getMessage());
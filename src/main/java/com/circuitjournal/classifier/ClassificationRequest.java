@@ -0,0 +1,71 @@
+package com.circuitjournal.classifier;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * One image waiting for classification, either an image file or raw RGB pixels
+ */
+class ClassificationRequest {
+
+    private final String imagePath;
+    private final int width;
+    private final int height;
+    private final byte[] rgbPixels;
+    private final CompletableFuture<Map<String, Object>> result = new CompletableFuture<>();
+
+    private ClassificationRequest(String imagePath, int width, int height, byte[] rgbPixels) {
+        this.imagePath = imagePath;
+        this.width = width;
+        this.height = height;
+        this.rgbPixels = rgbPixels;
+    }
+
+    static ClassificationRequest forImage(String imagePath) {
+        return new ClassificationRequest(imagePath, 0, 0, null);
+    }
+
+    /**
+     * @param rgbPixels 3 bytes per pixel, line by line
+     */
+    static ClassificationRequest forPixels(int width, int height, byte[] rgbPixels) {
+        return new ClassificationRequest(null, width, height, rgbPixels);
+    }
+
+    /**
+     * @return JSON fields of the request sent to the worker process
+     */
+    Map<String, Object> toJson(long requestId) {
+        Map<String, Object> json = new HashMap<>();
+        json.put("id", requestId);
+        if (rgbPixels != null) {
+            json.put("width", width);
+            json.put("height", height);
+            json.put("pixel_bytes", rgbPixels.length);
+        } else {
+            json.put("image_path", imagePath);
+        }
+        return json;
+    }
+
+    /**
+     * @return raw pixels sent after the JSON line, null for image files
+     */
+    byte[] getPixelData() {
+        return rgbPixels;
+    }
+
+    CompletableFuture<Map<String, Object>> getResult() {
+        return result;
+    }
+
+    void complete(Map<String, Object> classificationResult) {
+        result.complete(classificationResult);
+    }
+
+    void fail(String error) {
+        result.complete(PythonClassifierBridge.createErrorResult(error));
+    }
+
+}
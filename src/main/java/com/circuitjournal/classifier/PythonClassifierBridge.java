@@ -1,45 +1,105 @@
 package com.circuitjournal.classifier;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import org.apache.commons.lang3.StringUtils;
+import com.circuitjournal.capture.FrameSnapshot;
+import com.circuitjournal.metrics.CaptureMetrics;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingDeque;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Bridge to call Python classification script from Java
  */
-public class PythonClassifierBridge {
-    
+public class PythonClassifierBridge implements AutoCloseable {
+
+    public static final int DEFAULT_WORKER_COUNT = 1;
+    public static final int DEFAULT_QUEUE_CAPACITY = 4;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 8;
+    public static final long DEFAULT_BATCH_WINDOW_MILLIS = 5;
+    // Includes loading the model when the worker process starts
+    public static final long DEFAULT_REQUEST_TIMEOUT_MILLIS = 60000;
+
+    // Frames are resized to the model input size before they are sent to Python
+    public static final int MODEL_INPUT_WIDTH = 224;
+    public static final int MODEL_INPUT_HEIGHT = 224;
+
+    /**
+     * What to do with a new image when all workers are busy and the queue is full
+     */
+    public enum QueuePolicy {
+        // Fail the new image
+        REJECT,
+        // Fail the oldest waiting image and queue the new one
+        LATEST_WINS
+    }
+
     private String pythonExecutable;
     private String scriptPath;
     private String modelPath;
-    private ObjectMapper mapper = new ObjectMapper();
-    
+    private final QueuePolicy queuePolicy;
+    private final BlockingDeque<ClassificationRequest> requestQueue;
+    private final List<PythonClassifierWorker> workers = new ArrayList<>();
+    private final List<Thread> dispatcherThreads = new ArrayList<>();
+    private final AtomicInteger rejectedCount = new AtomicInteger();
+    private final AtomicInteger supersededCount = new AtomicInteger();
+    private volatile int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    private volatile long batchWindowMillis = DEFAULT_BATCH_WINDOW_MILLIS;
+    private volatile long requestTimeoutMillis = DEFAULT_REQUEST_TIMEOUT_MILLIS;
+    private volatile boolean closed = false;
+    private volatile CaptureMetrics metrics;
+
     // Categories for waste classification
     public static final List<String> CATEGORIES = Arrays.asList("Paper", "Glass", "Metal", "Plastic", "Trash");
-    
+
     /**
-     * Creates a bridge to the Python classifier
-     * 
+     * Creates a bridge to the Python classifier with one worker process
+     *
      * @param pythonExecutable Path to Python executable (e.g., "python" or "python3")
      * @param scriptPath Path to the Python classifier script
      * @param modelPath Path to the H5 model file
      */
     public PythonClassifierBridge(String pythonExecutable, String scriptPath, String modelPath) {
+        this(pythonExecutable, scriptPath, modelPath, DEFAULT_WORKER_COUNT, DEFAULT_QUEUE_CAPACITY, QueuePolicy.LATEST_WINS);
+    }
+
+    /**
+     * Creates a bridge to the Python classifier
+     *
+     * @param pythonExecutable Path to Python executable (e.g., "python" or "python3")
+     * @param scriptPath Path to the Python classifier script
+     * @param modelPath Path to the H5 model file
+     * @param workerCount Number of Python worker processes classifying in parallel
+     * @param queueCapacity Max number of images waiting for a free worker
+     * @param queuePolicy What to do when the queue is full
+     */
+    public PythonClassifierBridge(
+            String pythonExecutable,
+            String scriptPath,
+            String modelPath,
+            int workerCount,
+            int queueCapacity,
+            QueuePolicy queuePolicy
+    ) {
         this.pythonExecutable = pythonExecutable;
         this.scriptPath = scriptPath;
         this.modelPath = modelPath;
-        
+        this.queuePolicy = queuePolicy;
+        this.requestQueue = new LinkedBlockingDeque<>(Math.max(1, queueCapacity));
+
         validateSetup();
+        startWorkers(Math.max(1, workerCount));
     }
-    
+
     /**
      * Validate that the Python setup is correct
      */
@@ -48,74 +108,223 @@ public class PythonClassifierBridge {
         if (!script.exists()) {
             throw new RuntimeException("Python script not found: " + scriptPath);
         }
-        
+
         File model = new File(modelPath);
         if (!model.exists()) {
             throw new RuntimeException("Model file not found: " + modelPath);
         }
     }
-    
+
     /**
-     * Classify an image using the Python classifier
-     * 
+     * Each worker process gets its own dispatcher thread that feeds it one batch at a time
+     */
+    private void startWorkers(int workerCount) {
+        for (int i = 0; i < workerCount; i++) {
+            PythonClassifierWorker worker = new PythonClassifierWorker(pythonExecutable, scriptPath, modelPath);
+            Thread dispatcherThread = new Thread(() -> dispatchRequests(worker), "classifier-dispatcher-" + (i + 1));
+            dispatcherThread.setDaemon(true);
+            workers.add(worker);
+            dispatcherThreads.add(dispatcherThread);
+            dispatcherThread.start();
+        }
+    }
+
+    /**
+     * Classify an image using the Python classifier.
+     * Worker processes are started on first use and kept running for the next images.
+     *
      * @param imagePath Path to the image file
      * @return Classification result map
      */
-    @SuppressWarnings("unchecked")
     public CompletableFuture<Map<String, Object>> classifyImage(String imagePath) {
-        return CompletableFuture.supplyAsync(() -> {
-            try {
-                ProcessBuilder processBuilder = new ProcessBuilder(
-                    pythonExecutable,
-                    scriptPath,
-                    modelPath,
-                    imagePath
-                );
-                
-                Process process = processBuilder.start();
-                
-                // Read the output
-                StringBuilder output = new StringBuilder();
-                try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-                    String line;
-                    while ((line = reader.readLine()) != null) {
-                        output.append(line);
-                    }
+        return submit(ClassificationRequest.forImage(imagePath));
+    }
+
+    /**
+     * Classify a captured frame without writing it to an image file.
+     * The frame is resized to the model input size and the raw RGB pixels are piped to the worker.
+     *
+     * @param frame Captured frame
+     * @return Classification result map
+     */
+    public CompletableFuture<Map<String, Object>> classifyFrame(FrameSnapshot frame) {
+        return submit(ClassificationRequest.forPixels(MODEL_INPUT_WIDTH, MODEL_INPUT_HEIGHT, toModelInputPixels(frame)));
+    }
+
+    private CompletableFuture<Map<String, Object>> submit(ClassificationRequest request) {
+        CaptureMetrics captureMetrics = metrics;
+        if (captureMetrics != null) {
+            long submitNanos = System.nanoTime();
+            request.getResult().thenAccept((result) -> {
+                // Only classified images, skipped and rejected ones would hide the worker latency
+                if (Boolean.TRUE.equals(result.get("success"))) {
+                    captureMetrics.getClassifierLatencyHistogram().recordSince(submitNanos);
                 }
-                
-                // Check for errors
-                StringBuilder error = new StringBuilder();
-                try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getErrorStream()))) {
-                    String line;
-                    while ((line = reader.readLine()) != null) {
-                        error.append(line).append("\n");
+            });
+        }
+        if (closed) {
+            request.fail("Classifier is closed");
+            return request.getResult();
+        }
+
+        boolean queued;
+        ClassificationRequest skippedRequest = null;
+        synchronized (requestQueue) {
+            queued = requestQueue.offerLast(request);
+            if (!queued && queuePolicy == QueuePolicy.LATEST_WINS) {
+                skippedRequest = requestQueue.pollFirst();
+                queued = requestQueue.offerLast(request);
+            }
+        }
+
+        if (skippedRequest != null) {
+            supersededCount.incrementAndGet();
+            skippedRequest.fail("Skipped, newer image queued");
+        }
+        if (!queued) {
+            rejectedCount.incrementAndGet();
+            request.fail("Classifier queue is full");
+        }
+        return request.getResult();
+    }
+
+    /**
+     * Requests arriving within the batch window are sent to the worker together
+     * so that Python runs one model prediction for all of them.
+     */
+    private void dispatchRequests(PythonClassifierWorker worker) {
+        List<ClassificationRequest> batch = new ArrayList<>();
+        while (!closed) {
+            batch.clear();
+            try {
+                batch.add(requestQueue.takeFirst());
+                long batchDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchWindowMillis);
+                while (batch.size() < maxBatchSize) {
+                    ClassificationRequest request = requestQueue.pollFirst(batchDeadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (request == null) {
+                        break;
                     }
+                    batch.add(request);
                 }
-                
-                int exitCode = process.waitFor();
-                
-                if (exitCode != 0) {
-                    Map<String, Object> errorResult = new HashMap<>();
-                    errorResult.put("success", false);
-                    errorResult.put("error", "Python script exited with code " + exitCode + ": " + error.toString());
-                    return errorResult;
-                }
-                
-                if (StringUtils.isBlank(output)) {
-                    Map<String, Object> errorResult = new HashMap<>();
-                    errorResult.put("success", false);
-                    errorResult.put("error", "No output from Python script");
-                    return errorResult;
+            } catch (InterruptedException e) {
+                batch.forEach((request) -> request.fail("Classifier is closed"));
+                return;
+            }
+
+            worker.classify(batch);
+            long timeoutMillis = requestTimeoutMillis;
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            try {
+                for (ClassificationRequest request : batch) {
+                    request.getResult().get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
                 }
-                
-                return mapper.readValue(output.toString(), Map.class);
-                
-            } catch (Exception e) {
-                Map<String, Object> errorResult = new HashMap<>();
-                errorResult.put("success", false);
-                errorResult.put("error", "Error running Python script: " + e.getMessage());
-                return errorResult;
+            } catch (InterruptedException e) {
+                batch.forEach((request) -> request.fail("Classifier is closed"));
+                return;
+            } catch (TimeoutException e) {
+                // A hung prediction would block this worker for good
+                String error = "No answer from the Python worker in " + timeoutMillis + " ms";
+                worker.restart(error);
+                batch.forEach((request) -> request.fail(error));
+            } catch (ExecutionException e) {
+                // Results are always completed normally
+            }
+        }
+    }
+
+    /**
+     * Configure micro-batching
+     *
+     * @param maxBatchSize Max number of images classified with one model prediction, 1 disables batching
+     * @param batchWindowMillis How long to wait for more images after the first one
+     */
+    public void setBatching(int maxBatchSize, long batchWindowMillis) {
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.batchWindowMillis = Math.max(0, batchWindowMillis);
+    }
+
+    /**
+     * @param requestTimeoutMillis How long to wait for the worker to answer a batch before the
+     * requests fail and the worker process is restarted
+     */
+    public void setRequestTimeout(long requestTimeoutMillis) {
+        this.requestTimeoutMillis = Math.max(1, requestTimeoutMillis);
+    }
+
+    /**
+     * Record the time from submitting an image to its classification result in the metrics
+     *
+     * @param metrics null to stop recording
+     */
+    public void setMetrics(CaptureMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Nearest neighbour resize to the model input size, same sampling as the Keras image loader.
+     *
+     * @return 3 bytes per pixel, line by line
+     */
+    static byte[] toModelInputPixels(FrameSnapshot frame) {
+        int frameW = frame.getWidth();
+        int frameH = frame.getHeight();
+        byte[] rgbPixels = new byte[MODEL_INPUT_WIDTH * MODEL_INPUT_HEIGHT * 3];
+        int i = 0;
+        for (int y = 0; y < MODEL_INPUT_HEIGHT; y++) {
+            int frameY = (2 * y + 1) * frameH / (2 * MODEL_INPUT_HEIGHT);
+            for (int x = 0; x < MODEL_INPUT_WIDTH; x++) {
+                int argb = frame.getPixelArgb((2 * x + 1) * frameW / (2 * MODEL_INPUT_WIDTH), frameY);
+                rgbPixels[i++] = (byte) (argb >> 16);
+                rgbPixels[i++] = (byte) (argb >> 8);
+                rgbPixels[i++] = (byte) argb;
             }
-        });
+        }
+        return rgbPixels;
+    }
+
+    /**
+     * @return number of images waiting for a free worker
+     */
+    public int getQueuedCount() {
+        return requestQueue.size();
+    }
+
+    /**
+     * @return number of images that were not classified because the queue was full
+     */
+    public int getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * @return number of waiting images dropped in favour of newer ones
+     */
+    public int getSupersededCount() {
+        return supersededCount.get();
+    }
+
+    /**
+     * Stop the Python classifier processes, waiting images fail
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Thread dispatcherThread : dispatcherThreads) {
+            dispatcherThread.interrupt();
+        }
+        for (PythonClassifierWorker worker : workers) {
+            worker.close();
+        }
+        ClassificationRequest request;
+        while ((request = requestQueue.pollFirst()) != null) {
+            request.fail("Classifier is closed");
+        }
+    }
+
+    static Map<String, Object> createErrorResult(String error) {
+        Map<String, Object> errorResult = new HashMap<>();
+        errorResult.put("success", false);
+        errorResult.put("error", error);
+        return errorResult;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,269 @@
+package com.circuitjournal.classifier;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Long-lived Python classifier process that loads the model once.
+ *
+ * Requests and responses are newline-delimited JSON over the process stdin and stdout,
+ * a request with pixel data is followed by the raw bytes. Responses are matched to
+ * requests by id. If the process dies, its waiting requests fail and the next request
+ * starts a new process.
+ */
+class PythonClassifierWorker implements AutoCloseable {
+
+    private static final int MAX_STDERR_LINES = 20;
+    private static final int INPUT_BUFFER_SIZE = 64 * 1024;
+    private static final long EXIT_TIMEOUT_SECONDS = 5;
+
+    private static final AtomicLong workerCounter = new AtomicLong();
+
+    private final String pythonExecutable;
+    private final String scriptPath;
+    private final String modelPath;
+    private final String name;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final AtomicLong requestCounter = new AtomicLong();
+
+    private WorkerProcess workerProcess;
+    private boolean closed = false;
+
+
+    PythonClassifierWorker(String pythonExecutable, String scriptPath, String modelPath) {
+        this.pythonExecutable = pythonExecutable;
+        this.scriptPath = scriptPath;
+        this.modelPath = modelPath;
+        this.name = "classifier-worker-" + workerCounter.incrementAndGet();
+    }
+
+
+    /**
+     * Send requests to the worker process in one message, starting the process if it is not running.
+     * The requests are completed when the worker answers, dies or is restarted.
+     */
+    synchronized void classify(List<ClassificationRequest> requests) {
+        if (closed) {
+            requests.forEach((request) -> request.fail("Classifier is closed"));
+            return;
+        }
+
+        try {
+            if (workerProcess == null || !workerProcess.isAlive()) {
+                workerProcess = new WorkerProcess();
+            }
+            workerProcess.send(requests);
+        } catch (Exception e) {
+            if (workerProcess != null) {
+                workerProcess.destroy();
+                workerProcess = null;
+            }
+            requests.forEach((request) -> request.fail("Error running Python script: " + e.getMessage()));
+        }
+    }
+
+    /**
+     * Stop a hung worker process, its waiting requests fail and the next request starts a new process
+     */
+    synchronized void restart(String reason) {
+        if (workerProcess != null) {
+            WorkerProcess hungProcess = workerProcess;
+            workerProcess = null;
+            hungProcess.destroy();
+            hungProcess.failPendingRequests(reason);
+        }
+    }
+
+    synchronized int getPendingRequestCount() {
+        return workerProcess != null ? workerProcess.pendingRequests.size() : 0;
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (workerProcess != null) {
+            workerProcess.close();
+            workerProcess = null;
+        }
+    }
+
+
+    /**
+     * One started Python process and the requests sent to it
+     */
+    private class WorkerProcess {
+
+        private final Process process;
+        private final OutputStream processInput;
+        private final Map<Long, ClassificationRequest> pendingRequests = new ConcurrentHashMap<>();
+        private final Deque<String> lastErrorLines = new ArrayDeque<>();
+
+        WorkerProcess() throws IOException {
+            ProcessBuilder processBuilder = new ProcessBuilder(
+                pythonExecutable,
+                scriptPath,
+                "--worker",
+                modelPath
+            );
+            process = processBuilder.start();
+            processInput = new BufferedOutputStream(process.getOutputStream(), INPUT_BUFFER_SIZE);
+
+            startDaemonThread(name + "-output", this::readResponses);
+            startDaemonThread(name + "-error", this::readErrors);
+        }
+
+        boolean isAlive() {
+            return process.isAlive();
+        }
+
+        /**
+         * A single request is one JSON line, several requests are sent as one {"batch": [...]} line.
+         * The pixel data of the requests follows the line in the same order.
+         */
+        void send(List<ClassificationRequest> requests) throws IOException {
+            List<Map<String, Object>> jsonRequests = new ArrayList<>();
+            for (ClassificationRequest request : requests) {
+                long requestId = requestCounter.incrementAndGet();
+                pendingRequests.put(requestId, request);
+                jsonRequests.add(request.toJson(requestId));
+            }
+
+            try {
+                Object message = jsonRequests.size() == 1 ? jsonRequests.get(0) : Collections.singletonMap("batch", jsonRequests);
+                processInput.write(mapper.writeValueAsBytes(message));
+                processInput.write('\n');
+                for (ClassificationRequest request : requests) {
+                    if (request.getPixelData() != null) {
+                        processInput.write(request.getPixelData());
+                    }
+                }
+                processInput.flush();
+            } catch (IOException e) {
+                for (Map<String, Object> jsonRequest : jsonRequests) {
+                    pendingRequests.remove((Long) jsonRequest.get("id"));
+                }
+                throw e;
+            }
+        }
+
+        void close() {
+            try {
+                // Worker exits when its stdin is closed
+                processInput.close();
+                if (!process.waitFor(EXIT_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    process.destroy();
+                }
+            } catch (Exception e) {
+                process.destroy();
+            }
+            failPendingRequests("Classifier is closed");
+        }
+
+        void destroy() {
+            process.destroy();
+        }
+
+
+        @SuppressWarnings("unchecked")
+        private void readResponses() {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (StringUtils.isBlank(line)) {
+                        continue;
+                    }
+                    try {
+                        Map<String, Object> response = mapper.readValue(line, Map.class);
+                        Object id = response.remove("id");
+                        ClassificationRequest request = id instanceof Number ? pendingRequests.remove(((Number) id).longValue()) : null;
+                        if (request != null) {
+                            request.complete(response);
+                        } else if (id == null) {
+                            // The worker could not read the request, its input may be out of sync
+                            System.err.println(name + ": response without id: " + line);
+                            failPendingRequests("Python worker could not read the request: " + response.get("error"));
+                            destroy();
+                        } else {
+                            System.err.println(name + ": response without matching request: " + line);
+                        }
+                    } catch (IOException e) {
+                        System.err.println(name + ": invalid response: " + line);
+                    }
+                }
+            } catch (IOException e) {
+                // Process output closed
+            }
+            processExited();
+        }
+
+        private void readErrors() {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getErrorStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    synchronized (lastErrorLines) {
+                        lastErrorLines.addLast(line);
+                        if (lastErrorLines.size() > MAX_STDERR_LINES) {
+                            lastErrorLines.removeFirst();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // Process error output closed
+            }
+        }
+
+        private void processExited() {
+            String exitMessage;
+            try {
+                if (process.waitFor(EXIT_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    exitMessage = "Python worker exited with code " + process.exitValue();
+                } else {
+                    process.destroy();
+                    exitMessage = "Python worker closed its output";
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                exitMessage = "Python worker stopped";
+            }
+            failPendingRequests(exitMessage + ": " + getLastErrors());
+        }
+
+        private void failPendingRequests(String error) {
+            for (Long requestId : pendingRequests.keySet()) {
+                ClassificationRequest request = pendingRequests.remove(requestId);
+                if (request != null) {
+                    request.fail(error);
+                }
+            }
+        }
+
+        private String getLastErrors() {
+            synchronized (lastErrorLines) {
+                return String.join("\n", lastErrorLines);
+            }
+        }
+
+        private void startDaemonThread(String threadName, Runnable runnable) {
+            Thread thread = new Thread(runnable, threadName);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+}
@@ -0,0 +1,292 @@
+package com.circuitjournal.daemon;
+
+import com.circuitjournal.classifier.PythonClassifierBridge;
+import com.circuitjournal.metrics.LatencyTrace;
+import com.circuitjournal.metrics.LatencyTraceRecorder;
+import com.circuitjournal.serialreader.JSerialCommSerialReader;
+import com.circuitjournal.serialreader.ReplaySerialReader;
+import com.circuitjournal.serialreader.SerialTrafficRecorder;
+import com.circuitjournal.storage.AsyncFrameWriter;
+import com.circuitjournal.storage.FrameSink;
+import com.circuitjournal.storage.PngFileSink;
+import com.circuitjournal.storage.RawFrameRecorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Captures frames from one or more serial ports without a window.
+ * Recorded serial data can be replayed instead of a port to measure throughput without a camera.
+ *
+ * Serial data is decoded by ImageCapture, finished frames are recorded to the output
+ * folder and optionally classified. No Swing or AWT classes are loaded unless frames
+ * are saved as png files.
+ */
+public class CaptureDaemon {
+
+    private static final long STATUS_INTERVAL_SECONDS = 10;
+
+    private final CaptureManager captureManager;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private final AtomicBoolean stopping = new AtomicBoolean(false);
+
+
+    public CaptureDaemon(CaptureManager captureManager) {
+        this.captureManager = captureManager;
+    }
+
+
+    public void start() {
+        captureManager.start();
+    }
+
+    /**
+     * Blocks until stop is called, printing status periodically
+     */
+    public void awaitStop() throws InterruptedException {
+        while (!stopped.await(STATUS_INTERVAL_SECONDS, TimeUnit.SECONDS)) {
+            System.out.println(captureManager.getStatus());
+        }
+    }
+
+    /**
+     * Stop reading and wait for queued frames to be written
+     */
+    public void stop() {
+        if (!stopping.compareAndSet(false, true)) {
+            return;
+        }
+        captureManager.stop();
+        System.out.println(captureManager.getStatus());
+        LatencyTraceRecorder frameLatencies = captureManager.getMetrics().getFrameLatencyTraces();
+        if (frameLatencies.getStageLatency(LatencyTrace.Stage.CLASSIFIED).getCount() > 0) {
+            // Same report as the dumpFrameLatencyReport JMX operation
+            System.out.print(frameLatencies.formatReport());
+        }
+        stopped.countDown();
+    }
+
+
+
+    public static void main(String[] args) {
+        // Png encoding uses AWT image classes, make sure they never need a display
+        System.setProperty("java.awt.headless", "true");
+
+        Map<String, Integer> ports = new LinkedHashMap<>();
+        Map<String, Integer> replays = new LinkedHashMap<>();
+        ReplaySerialReader.Pacing replayPacing = ReplaySerialReader.Pacing.AS_FAST_AS_POSSIBLE;
+        int replayRepeatCount = 1;
+        Integer baudRate = null;
+        File outputFolder = null;
+        boolean savePng = false;
+        boolean recordSerialTraffic = false;
+        String pythonExecutable = "python3";
+        String scriptPath = null;
+        String modelPath = null;
+        int workerCount = PythonClassifierBridge.DEFAULT_WORKER_COUNT;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--list-ports":
+                        new JSerialCommSerialReader().getAvailablePorts().forEach(System.out::println);
+                        return;
+                    case "--port":
+                        addPort(ports, args[++i]);
+                        break;
+                    case "--replay":
+                        addPort(replays, args[++i]);
+                        break;
+                    case "--replay-speed":
+                        replayPacing = getReplayPacing(args[++i]);
+                        break;
+                    case "--repeat":
+                        replayRepeatCount = Integer.parseInt(args[++i]);
+                        break;
+                    case "--baud":
+                        baudRate = parseBaudRate(args[++i]);
+                        break;
+                    case "--output":
+                        outputFolder = new File(args[++i]);
+                        break;
+                    case "--png":
+                        savePng = true;
+                        break;
+                    case "--record-serial":
+                        recordSerialTraffic = true;
+                        break;
+                    case "--python":
+                        pythonExecutable = args[++i];
+                        break;
+                    case "--script":
+                        scriptPath = args[++i];
+                        break;
+                    case "--model":
+                        modelPath = args[++i];
+                        break;
+                    case "--workers":
+                        workerCount = Integer.parseInt(args[++i]);
+                        break;
+                    default:
+                        printUsage("Unknown option " + args[i]);
+                        return;
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            printUsage("Invalid arguments");
+            return;
+        } catch (IllegalArgumentException e) {
+            printUsage("Invalid arguments: " + e.getMessage());
+            return;
+        }
+
+        if (ports.isEmpty() && replays.isEmpty()) {
+            printUsage("Port is missing");
+            return;
+        }
+        if (recordSerialTraffic && outputFolder == null) {
+            printUsage("Recording serial data needs --output");
+            return;
+        }
+        if ((scriptPath == null) != (modelPath == null)) {
+            printUsage("Classification needs both --script and --model");
+            return;
+        }
+
+        try {
+            // Serial ports and replays each queue frames for saving and classification
+            int sessionCount = ports.size() + replays.size();
+            PythonClassifierBridge classifier = null;
+            if (scriptPath != null) {
+                classifier = new PythonClassifierBridge(
+                        pythonExecutable,
+                        scriptPath,
+                        modelPath,
+                        workerCount,
+                        PythonClassifierBridge.DEFAULT_QUEUE_CAPACITY * sessionCount,
+                        PythonClassifierBridge.QueuePolicy.LATEST_WINS);
+            }
+
+            CaptureManager captureManager = new CaptureManager(AsyncFrameWriter.DEFAULT_QUEUE_CAPACITY * sessionCount, classifier);
+            CaptureDaemon daemon = new CaptureDaemon(captureManager);
+
+            for (Map.Entry<String, Integer> port : ports.entrySet()) {
+                File portFolder = getSessionFolder(outputFolder, port.getKey(), sessionCount);
+                CaptureSession session = captureManager.addPort(port.getKey(), port.getValue() != null ? port.getValue() : baudRate, createFrameSink(portFolder, savePng), portFolder);
+                if (recordSerialTraffic) {
+                    session.recordSerialTraffic(new File(portFolder, getTimestampFileName(SerialTrafficRecorder.FILE_EXTENSION)));
+                }
+            }
+
+            // Daemon stops after the last replay if there are no serial ports
+            AtomicInteger runningReplayCount = new AtomicInteger(replays.size());
+            boolean stopAfterReplay = ports.isEmpty();
+            for (Map.Entry<String, Integer> replay : replays.entrySet()) {
+                File replayFolder = getSessionFolder(outputFolder, new File(replay.getKey()).getName(), sessionCount);
+                ReplaySerialReader replayReader = new ReplaySerialReader(new File(replay.getKey()), replayPacing);
+                replayReader.setRepeatCount(replayRepeatCount);
+                replayReader.setReplayFinishedHandler(() -> {
+                    double seconds = replayReader.getReplayNanos() / 1e9;
+                    System.out.println(String.format("Replayed %s: %d bytes in %.3f s, %.1f kB/s",
+                            replay.getKey(), replayReader.getReplayedByteCount(), seconds, replayReader.getReplayedByteCount() / seconds / 1000));
+                    if (runningReplayCount.decrementAndGet() == 0 && stopAfterReplay) {
+                        new Thread(daemon::stop, "capture-daemon-stop").start();
+                    }
+                });
+                captureManager.addSession(replay.getKey(), replay.getValue() != null ? replay.getValue() : baudRate, replayReader, createFrameSink(replayFolder, savePng), replayFolder);
+            }
+
+            Runtime.getRuntime().addShutdownHook(new Thread(daemon::stop, "capture-daemon-stop"));
+            daemon.start();
+            daemon.awaitStop();
+        } catch (Exception e) {
+            System.err.println("Capture failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @param port port name or replay file, optionally followed by :baud rate
+     */
+    private static void addPort(Map<String, Integer> ports, String port) {
+        int separator = port.lastIndexOf(':');
+        if (separator > 0 && port.substring(separator + 1).matches("\\d+")) {
+            ports.put(port.substring(0, separator), parseBaudRate(port.substring(separator + 1)));
+        } else {
+            ports.put(port, null);
+        }
+    }
+
+    /**
+     * The serial reader would fall back to its default rate and decode garbage, so unsupported rates are rejected
+     */
+    private static Integer parseBaudRate(String value) {
+        Integer baudRate = Integer.parseInt(value);
+        List<Integer> supportedBaudRates = new JSerialCommSerialReader().getAvailableBaudRates();
+        if (!supportedBaudRates.contains(baudRate)) {
+            throw new IllegalArgumentException("Unsupported baud rate " + value + ", use one of " + supportedBaudRates);
+        }
+        return baudRate;
+    }
+
+    /**
+     * Every session records to its own sub folder if there are several
+     */
+    private static File getSessionFolder(File outputFolder, String sessionName, int sessionCount) {
+        if (outputFolder == null || sessionCount == 1) {
+            return outputFolder;
+        }
+        return new File(outputFolder, sessionName.replaceAll("[^A-Za-z0-9._-]", "_"));
+    }
+
+    private static FrameSink createFrameSink(File folder, boolean savePng) throws IOException {
+        if (folder == null) {
+            return null;
+        }
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IOException("Cannot create " + folder.getAbsolutePath());
+        }
+        return savePng ? new PngFileSink(folder) : createRawFrameRecorder(folder);
+    }
+
+    private static RawFrameRecorder createRawFrameRecorder(File outputFolder) throws IOException {
+        File recordingFile = new File(outputFolder.getAbsolutePath(), getTimestampFileName(RawFrameRecorder.FILE_EXTENSION));
+        System.out.println("Recording to " + recordingFile.getAbsolutePath());
+        return new RawFrameRecorder(recordingFile);
+    }
+
+    private static String getTimestampFileName(String extension) {
+        return (new SimpleDateFormat("yyyy-MM-dd_HH.mm.ss.SSS")).format(new Date()) + extension;
+    }
+
+    private static ReplaySerialReader.Pacing getReplayPacing(String speed) {
+        switch (speed) {
+            case "realtime":
+                return ReplaySerialReader.Pacing.REAL_TIME;
+            case "recorded":
+                return ReplaySerialReader.Pacing.RECORDED_TIMING;
+            case "max":
+                return ReplaySerialReader.Pacing.AS_FAST_AS_POSSIBLE;
+            default:
+                throw new IllegalArgumentException("Unknown replay speed " + speed);
+        }
+    }
+
+    private static void printUsage(String error) {
+        System.err.println(error);
+        System.err.println("Usage: CaptureDaemon --port <name>[:<baud rate>] [--port ...] [--baud <rate>] [--output <folder> [--png] [--record-serial]]");
+        System.err.println("                     [--replay <serial data file>[:<baud rate>] [--replay-speed realtime|recorded|max] [--repeat <count>]]");
+        System.err.println("                     [--script <classifier script> --model <model file> [--python <executable>] [--workers <count>]]");
+        System.err.println("       CaptureDaemon --list-ports");
+        System.exit(2);
+    }
+}
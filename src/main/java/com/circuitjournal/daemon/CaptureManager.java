@@ -0,0 +1,164 @@
+package com.circuitjournal.daemon;
+
+import com.circuitjournal.classifier.PythonClassifierBridge;
+import com.circuitjournal.metrics.CaptureMetrics;
+import com.circuitjournal.metrics.MetricsReporter;
+import com.circuitjournal.serialreader.JSerialCommSerialReader;
+import com.circuitjournal.serialreader.SerialReader;
+import com.circuitjournal.storage.AsyncFrameWriter;
+import com.circuitjournal.storage.FrameSink;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Captures from several serial ports in one JVM.
+ *
+ * Every port gets its own CaptureSession, all sessions share one frame writer
+ * and one classifier so that saving and classification threads are not multiplied by the port count.
+ */
+public class CaptureManager {
+
+    private final AsyncFrameWriter frameWriter;
+    private final PythonClassifierBridge classifier;
+    private final List<CaptureSession> sessions = new ArrayList<>();
+    private final CaptureMetrics metrics = new CaptureMetrics();
+    private MetricsReporter metricsReporter;
+
+    // Counters at the previous status, for throughput since then
+    private final Map<CaptureSession, long[]> previousCounts = new HashMap<>();
+    private long previousStatusNanos = System.nanoTime();
+
+
+    /**
+     * @param frameWriterQueueCapacity max number of frames from all ports waiting to be written
+     * @param classifier shared classifier, null to not classify
+     */
+    public CaptureManager(int frameWriterQueueCapacity, PythonClassifierBridge classifier) {
+        this.frameWriter = new AsyncFrameWriter(frameWriterQueueCapacity, null);
+        this.classifier = classifier;
+        frameWriter.setMetrics(metrics);
+        if (classifier != null) {
+            classifier.setMetrics(metrics);
+        }
+    }
+
+
+    /**
+     * @param frameSink where the frames of this port are written, null to not save frames
+     * @param statsFolder folder for the classification statistics of this port
+     */
+    public CaptureSession addPort(String portName, Integer baudRate, FrameSink frameSink, File statsFolder) {
+        SerialReader serialReader = new JSerialCommSerialReader(JSerialCommSerialReader.ReadMode.READER_THREAD);
+        return addSession(portName, baudRate, serialReader, frameSink, statsFolder);
+    }
+
+    /**
+     * @param serialReader reader used only by this session, for example a replay of recorded serial data
+     */
+    public synchronized CaptureSession addSession(String portName, Integer baudRate, SerialReader serialReader, FrameSink frameSink, File statsFolder) {
+        CaptureSession session = new CaptureSession(portName, baudRate, serialReader, frameWriter, frameSink, classifier, statsFolder, metrics);
+        sessions.add(session);
+        return session;
+    }
+
+    /**
+     * Start all ports, ports already started are stopped if one fails
+     */
+    public synchronized void start() {
+        List<CaptureSession> started = new ArrayList<>();
+        try {
+            for (CaptureSession session : sessions) {
+                session.start();
+                started.add(session);
+            }
+        } catch (RuntimeException e) {
+            started.forEach(CaptureSession::stop);
+            throw e;
+        }
+        previousStatusNanos = System.nanoTime();
+        metrics.registerMBean();
+        metricsReporter = new MetricsReporter(metrics, MetricsReporter.DEFAULT_INTERVAL_SECONDS, System.out);
+    }
+
+    /**
+     * Stop all ports and wait for queued frames to be written
+     */
+    public synchronized void stop() {
+        sessions.forEach(CaptureSession::stop);
+        frameWriter.shutdown();
+        if (metricsReporter != null) {
+            metricsReporter.close();
+            metricsReporter = null;
+        }
+        metrics.unregisterMBean();
+        if (classifier != null) {
+            classifier.close();
+        }
+    }
+
+    public synchronized List<CaptureSession> getSessions() {
+        return Collections.unmodifiableList(new ArrayList<>(sessions));
+    }
+
+    public AsyncFrameWriter getFrameWriter() {
+        return frameWriter;
+    }
+
+    /**
+     * @return metrics of all ports together
+     */
+    public CaptureMetrics getMetrics() {
+        return metrics;
+    }
+
+
+    /**
+     * @return one line per port with throughput since the previous status
+     */
+    public synchronized String getStatus() {
+        long now = System.nanoTime();
+        double seconds = Math.max(1e-9, (now - previousStatusNanos) / 1e9);
+        previousStatusNanos = now;
+
+        StringBuilder status = new StringBuilder();
+        for (CaptureSession session : sessions) {
+            long[] counts = {session.getReceivedByteCount(), session.getFrameCount()};
+            long[] previous = previousCounts.getOrDefault(session, new long[counts.length]);
+            previousCounts.put(session, counts);
+
+            status.append(String.format(
+                    "%s: %.1f kB/s, %.2f fps. Frames: %d captured, %d saved, %d dropped, %d invalid pixels",
+                    session.getPortName(),
+                    (counts[0] - previous[0]) / seconds / 1000,
+                    (counts[1] - previous[1]) / seconds,
+                    session.getFrameCount(),
+                    session.getSavedFrameCount(),
+                    session.getDroppedFrameCount(),
+                    session.getInvalidPixelCount()));
+            if (session.getSerialReader() instanceof JSerialCommSerialReader) {
+                JSerialCommSerialReader serialReader = (JSerialCommSerialReader) session.getSerialReader();
+                status.append(String.format(
+                        ". Receive queue: %d bytes, max %d, full %d times",
+                        serialReader.getReceiveQueueSize(),
+                        serialReader.getReceiveQueueHighWaterMark(),
+                        serialReader.getReceiveQueueOverflowCount()));
+                if (session.getDroppedSerialChunkCount() > 0) {
+                    status.append(String.format(". Serial recording dropped %d chunks", session.getDroppedSerialChunkCount()));
+                }
+            }
+            status.append(System.lineSeparator());
+        }
+        status.append(String.format("Frame writer: %d written, %d waiting", frameWriter.getWrittenCount(), frameWriter.getQueuedCount()));
+        if (classifier != null) {
+            status.append(String.format(". Classifier: %d waiting, %d skipped, %d rejected",
+                    classifier.getQueuedCount(), classifier.getSupersededCount(), classifier.getRejectedCount()));
+        }
+        return status.toString();
+    }
+
+}
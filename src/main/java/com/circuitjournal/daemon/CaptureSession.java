@@ -0,0 +1,193 @@
+package com.circuitjournal.daemon;
+
+import com.circuitjournal.capture.FrameSnapshot;
+import com.circuitjournal.capture.ImageCapture;
+import com.circuitjournal.classifier.ClassificationManager;
+import com.circuitjournal.classifier.PythonClassifierBridge;
+import com.circuitjournal.metrics.CaptureMetrics;
+import com.circuitjournal.serialreader.ArduinoCommunicator;
+import com.circuitjournal.serialreader.JSerialCommSerialReader;
+import com.circuitjournal.serialreader.SerialReader;
+import com.circuitjournal.serialreader.SerialTrafficRecorder;
+import com.circuitjournal.storage.AsyncFrameWriter;
+import com.circuitjournal.storage.FrameSink;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntToLongFunction;
+
+/**
+ * Capture from one serial port. Each session has its own reader, decoder state and frames,
+ * the frame writer and classifier are shared with the other sessions.
+ */
+public class CaptureSession {
+
+    private final String portName;
+    private final Integer baudRate;
+    private final SerialReader serialReader;
+    private final ImageCapture imageCapture;
+    private final AsyncFrameWriter frameWriter;
+    private final FrameSink frameSink;
+    private final ClassificationManager classificationManager;
+    private SerialTrafficRecorder trafficRecorder;
+
+    private final AtomicLong receivedByteCount = new AtomicLong();
+    private final AtomicLong savedFrameCount = new AtomicLong();
+    private final AtomicLong droppedFrameCount = new AtomicLong();
+
+
+    /**
+     * @param serialReader reader for this port only
+     * @param frameSink where finished frames are written, null to not save frames
+     * @param classifier shared classifier for finished frames, null to not classify
+     * @param statsFolder folder for the classification statistics of this port
+     * @param metrics shared metrics of all ports, null to not record metrics
+     */
+    public CaptureSession(
+            String portName,
+            Integer baudRate,
+            SerialReader serialReader,
+            AsyncFrameWriter frameWriter,
+            FrameSink frameSink,
+            PythonClassifierBridge classifier,
+            File statsFolder,
+            CaptureMetrics metrics
+    ) {
+        this.portName = portName;
+        this.serialReader = serialReader;
+        this.baudRate = serialReader.getDefaultBaudRate(baudRate);
+        this.imageCapture = new ImageCapture(null, this::debugTextReceived);
+        this.frameWriter = frameWriter;
+        this.frameSink = frameSink;
+        imageCapture.setMetrics(metrics);
+        serialReader.setMetrics(metrics);
+        // Frames are copied into a snapshot only for listeners that need the pixels
+        if (frameSink != null) {
+            imageCapture.addFrameCapturedListener(this::saveFrame);
+        }
+
+        IntToLongFunction receivedNanos = serialReader::getReceivedNanos;
+        serialReader.setReceivedBufferHandler((buffer) -> {
+            receivedByteCount.addAndGet(buffer.remaining());
+            imageCapture.addReceivedBytes(buffer, receivedNanos);
+        });
+
+        if (classifier != null) {
+            ArduinoCommunicator arduinoCommunicator = new ArduinoCommunicator(serialReader);
+            classificationManager = new ClassificationManager(classifier, statsFolder != null ? statsFolder.getPath() : null);
+            classificationManager.setMetrics(metrics);
+            imageCapture.addFrameCapturedListener(classificationManager::classifyFrame);
+            classificationManager.setClassificationCallback((category) -> {
+                System.out.println(portName + ": classified as " + category);
+                if (!arduinoCommunicator.sendClassificationResult(category)) {
+                    System.err.println(portName + ": sending classification result failed");
+                }
+                // Start deciding on the next object
+                classificationManager.resetClassification();
+            });
+        } else {
+            classificationManager = null;
+        }
+    }
+
+
+    public void start() {
+        serialReader.startListening(portName, baudRate);
+        System.out.println("Listening on " + portName + " at " + baudRate + " baud");
+    }
+
+    /**
+     * Stop reading, frames already queued are still written
+     */
+    public void stop() {
+        serialReader.stopListening();
+        if (frameSink != null) {
+            frameWriter.close(frameSink);
+        }
+        if (trafficRecorder != null) {
+            ((JSerialCommSerialReader) serialReader).setTrafficRecorder(null);
+            try {
+                trafficRecorder.close();
+            } catch (IOException e) {
+                System.err.println(portName + ": closing serial data recording failed: " + e.getMessage());
+            }
+            trafficRecorder = null;
+        }
+    }
+
+    /**
+     * Record the received serial data to the file, only for serial ports
+     */
+    public void recordSerialTraffic(File file) throws IOException {
+        if (!(serialReader instanceof JSerialCommSerialReader)) {
+            throw new IllegalStateException(portName + " is not a serial port");
+        }
+        trafficRecorder = new SerialTrafficRecorder(file);
+        ((JSerialCommSerialReader) serialReader).setTrafficRecorder(trafficRecorder);
+        System.out.println(portName + ": recording serial data to " + file.getAbsolutePath());
+    }
+
+
+    private void saveFrame(FrameSnapshot snapshot) {
+        if (frameWriter.write(snapshot, frameSink)) {
+            savedFrameCount.incrementAndGet();
+        } else {
+            droppedFrameCount.incrementAndGet();
+        }
+    }
+
+    private void debugTextReceived(String debugText) {
+        System.out.println(portName + ": " + debugText);
+    }
+
+
+    public String getPortName() {
+        return portName;
+    }
+
+    public long getReceivedByteCount() {
+        return receivedByteCount.get();
+    }
+
+    /**
+     * @return number of finished frames
+     */
+    public long getFrameCount() {
+        return imageCapture.getCapturedFrameCount();
+    }
+
+    /**
+     * @return number of frames queued to be saved
+     */
+    public long getSavedFrameCount() {
+        return savedFrameCount.get();
+    }
+
+    /**
+     * @return number of frames not saved because the frame writer was busy
+     */
+    public long getDroppedFrameCount() {
+        return droppedFrameCount.get();
+    }
+
+    /**
+     * @return number of pixels that failed the parity check in finished frames
+     */
+    public long getInvalidPixelCount() {
+        return imageCapture.getCapturedInvalidPixelCount();
+    }
+
+    /**
+     * @return number of received serial data chunks not recorded because the recorder was behind
+     */
+    public long getDroppedSerialChunkCount() {
+        SerialTrafficRecorder recorder = trafficRecorder;
+        return recorder != null ? recorder.getDroppedChunkCount() : 0;
+    }
+
+    public SerialReader getSerialReader() {
+        return serialReader;
+    }
+
+}
@@ -0,0 +1,214 @@
+package com.circuitjournal.metrics;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latencies of one capture process, shared by the serial reader, the decoder,
+ * the window, the frame writer and the classifier. Recording never blocks.
+ *
+ * Rates are updated by updateRates(), MetricsReporter calls it periodically.
+ */
+public class CaptureMetrics implements CaptureMetricsMXBean {
+
+    public static final String OBJECT_NAME = "com.circuitjournal:type=CaptureMetrics";
+
+    private final LongAdder receivedByteCount = new LongAdder();
+    private final LongAdder frameCount = new LongAdder();
+    private final LongAdder pixelCount = new LongAdder();
+    private final LongAdder invalidPixelCount = new LongAdder();
+    private final LongAdder commandChecksumFailureCount = new LongAdder();
+    private final LatencyHistogram renderLatency = new LatencyHistogram();
+    private final LatencyHistogram saveLatency = new LatencyHistogram();
+    private final LatencyHistogram classifierLatency = new LatencyHistogram();
+    private final LatencyTraceRecorder frameLatencyTraces = new LatencyTraceRecorder();
+
+    private volatile double bytesPerSecond;
+    private volatile double framesPerSecond;
+    private volatile double invalidPixelRatio;
+
+    // Totals at the last updateRates()
+    private long lastUpdateNanos = System.nanoTime();
+    private long lastReceivedByteCount;
+    private long lastFrameCount;
+    private long lastPixelCount;
+    private long lastInvalidPixelCount;
+
+    private ObjectName registeredName;
+
+
+    public void addReceivedBytes(long byteCount) {
+        receivedByteCount.add(byteCount);
+    }
+
+    public void frameCaptured(int framePixelCount, int frameInvalidPixelCount) {
+        frameCount.increment();
+        pixelCount.add(framePixelCount);
+        invalidPixelCount.add(frameInvalidPixelCount);
+    }
+
+    public void commandChecksumFailed() {
+        commandChecksumFailureCount.increment();
+    }
+
+    /**
+     * Time from a finished line to the line shown in the window
+     */
+    public LatencyHistogram getRenderLatencyHistogram() {
+        return renderLatency;
+    }
+
+    /**
+     * Time from a frame queued to be saved to the frame written
+     */
+    public LatencyHistogram getSaveLatencyHistogram() {
+        return saveLatency;
+    }
+
+    /**
+     * Time from a frame submitted to the classifier to the classification result
+     */
+    public LatencyHistogram getClassifierLatencyHistogram() {
+        return classifierLatency;
+    }
+
+
+    /**
+     * Per stage latency from the last received byte of a frame to the classification reply
+     */
+    public LatencyTraceRecorder getFrameLatencyTraces() {
+        return frameLatencyTraces;
+    }
+
+
+    /**
+     * Computes the rates since the previous call
+     */
+    public synchronized void updateRates() {
+        long now = System.nanoTime();
+        double seconds = (now - lastUpdateNanos) / 1e9;
+        if (seconds <= 0) {
+            return;
+        }
+        long bytes = receivedByteCount.sum();
+        long frames = frameCount.sum();
+        long pixels = pixelCount.sum();
+        long invalidPixels = invalidPixelCount.sum();
+
+        bytesPerSecond = (bytes - lastReceivedByteCount) / seconds;
+        framesPerSecond = (frames - lastFrameCount) / seconds;
+        long intervalPixels = pixels - lastPixelCount;
+        invalidPixelRatio = intervalPixels > 0 ? (invalidPixels - lastInvalidPixelCount) / (double) intervalPixels : 0;
+
+        lastUpdateNanos = now;
+        lastReceivedByteCount = bytes;
+        lastFrameCount = frames;
+        lastPixelCount = pixels;
+        lastInvalidPixelCount = invalidPixels;
+    }
+
+    /**
+     * @return one line summary for the log
+     */
+    public String formatSummary() {
+        return String.format("%.1f kB/s, %.2f fps, invalid pixels %.2f%%, checksum failures %d, render %s, save %s, classify %s",
+                bytesPerSecond / 1000,
+                framesPerSecond,
+                invalidPixelRatio * 100,
+                getCommandChecksumFailureCount(),
+                getRenderLatency(),
+                getSaveLatency(),
+                getClassifierLatency());
+    }
+
+
+    /**
+     * Make the metrics readable in JMX, for example with jconsole.
+     * Only the first registered instance of a process is visible.
+     */
+    public synchronized void registerMBean() {
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            registeredName = name;
+        } catch (InstanceAlreadyExistsException e) {
+            // Another window of the same process registered first
+        } catch (JMException e) {
+            System.err.println("Registering capture metrics in JMX failed: " + e.getMessage());
+        }
+    }
+
+    public synchronized void unregisterMBean() {
+        if (registeredName == null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(registeredName);
+        } catch (JMException e) {
+            // Already unregistered
+        }
+        registeredName = null;
+    }
+
+
+    @Override
+    public long getReceivedByteCount() {
+        return receivedByteCount.sum();
+    }
+
+    @Override
+    public long getFrameCount() {
+        return frameCount.sum();
+    }
+
+    @Override
+    public long getInvalidPixelCount() {
+        return invalidPixelCount.sum();
+    }
+
+    @Override
+    public long getCommandChecksumFailureCount() {
+        return commandChecksumFailureCount.sum();
+    }
+
+    @Override
+    public double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    @Override
+    public double getFramesPerSecond() {
+        return framesPerSecond;
+    }
+
+    @Override
+    public double getInvalidPixelRatio() {
+        return invalidPixelRatio;
+    }
+
+    @Override
+    public LatencySummary getRenderLatency() {
+        return renderLatency.getSummary();
+    }
+
+    @Override
+    public LatencySummary getSaveLatency() {
+        return saveLatency.getSummary();
+    }
+
+    @Override
+    public LatencySummary getClassifierLatency() {
+        return classifierLatency.getSummary();
+    }
+
+    @Override
+    public String dumpFrameLatencyReport() {
+        return frameLatencyTraces.formatReport();
+    }
+
+}
@@ -0,0 +1,37 @@
+package com.circuitjournal.metrics;
+
+/**
+ * Capture metrics in JMX, registered as CaptureMetrics.OBJECT_NAME.
+ * Rates are over the last reporting interval, counts since start.
+ */
+public interface CaptureMetricsMXBean {
+
+    long getReceivedByteCount();
+
+    long getFrameCount();
+
+    long getInvalidPixelCount();
+
+    long getCommandChecksumFailureCount();
+
+    double getBytesPerSecond();
+
+    double getFramesPerSecond();
+
+    /**
+     * @return share of received pixels that failed the parity check, 0 - 1
+     */
+    double getInvalidPixelRatio();
+
+    LatencySummary getRenderLatency();
+
+    LatencySummary getSaveLatency();
+
+    LatencySummary getClassifierLatency();
+
+    /**
+     * @return per stage latency table from the last received byte of a frame to the classification reply
+     */
+    String dumpFrameLatencyReport();
+
+}
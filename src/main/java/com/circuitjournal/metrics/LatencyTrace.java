@@ -0,0 +1,59 @@
+package com.circuitjournal.metrics;
+
+/**
+ * System.nanoTime() of each processing stage of one frame, from the last received byte
+ * to the classification result sent back to the Arduino. Stages are marked in order,
+ * each by the thread that finished the previous one.
+ */
+public class LatencyTrace {
+
+    public enum Stage {
+        // Last byte of the frame read from the serial port
+        RECEIVED("received"),
+        // Last line of the frame decoded
+        DECODED("decoded"),
+        // Frame handed to the classifier
+        CLASSIFY_REQUESTED("classify requested"),
+        // Classification result received from Python
+        CLASSIFIED("classified"),
+        // Classification manager decided on the category
+        DECIDED("decided"),
+        // Classification callback returned, the reply is written to the Arduino in it
+        REPLIED("replied");
+
+        private final String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+
+    private final long[] stageNanos = new long[STAGES.length];
+
+
+    public void mark(Stage stage) {
+        mark(stage, System.nanoTime());
+    }
+
+    public void mark(Stage stage, long nanos) {
+        stageNanos[stage.ordinal()] = nanos;
+    }
+
+    public boolean isMarked(Stage stage) {
+        return stageNanos[stage.ordinal()] != 0;
+    }
+
+    /**
+     * @return System.nanoTime() of the stage, 0 if the frame did not get to the stage
+     */
+    public long getNanos(Stage stage) {
+        return stageNanos[stage.ordinal()];
+    }
+
+}
@@ -0,0 +1,83 @@
+package com.circuitjournal.metrics;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Aggregates frame traces into one histogram per stage, the time from the previous stage,
+ * and one for the whole way from the received last byte to the reply.
+ * Recording is lock-free, so it can be done on the threads of the stages.
+ */
+public class LatencyTraceRecorder {
+
+    private static final LatencyTrace.Stage FIRST_STAGE = LatencyTrace.Stage.RECEIVED;
+    private static final LatencyTrace.Stage LAST_STAGE = LatencyTrace.Stage.REPLIED;
+    private static final LatencyTrace.Stage[] STAGES = LatencyTrace.Stage.values();
+
+    private final Map<LatencyTrace.Stage, LatencyHistogram> stageLatencies = new EnumMap<>(LatencyTrace.Stage.class);
+    private final LatencyHistogram totalLatency = new LatencyHistogram();
+
+
+    public LatencyTraceRecorder() {
+        for (LatencyTrace.Stage stage : STAGES) {
+            if (stage != FIRST_STAGE) {
+                stageLatencies.put(stage, new LatencyHistogram());
+            }
+        }
+    }
+
+
+    /**
+     * Stages the frame did not get to are skipped, frames without a reply
+     * are not counted in the total
+     */
+    public void record(LatencyTrace trace) {
+        for (int i = 1; i < STAGES.length; i++) {
+            if (trace.isMarked(STAGES[i - 1]) && trace.isMarked(STAGES[i])) {
+                stageLatencies.get(STAGES[i]).record(trace.getNanos(STAGES[i]) - trace.getNanos(STAGES[i - 1]));
+            }
+        }
+        if (trace.isMarked(FIRST_STAGE) && trace.isMarked(LAST_STAGE)) {
+            totalLatency.record(trace.getNanos(LAST_STAGE) - trace.getNanos(FIRST_STAGE));
+        }
+    }
+
+    /**
+     * @return time from the previous stage to the stage
+     */
+    public LatencyHistogram getStageLatency(LatencyTrace.Stage stage) {
+        return stageLatencies.get(stage);
+    }
+
+    public LatencyHistogram getTotalLatency() {
+        return totalLatency;
+    }
+
+    /**
+     * @return one line per stage with count and percentiles in milliseconds
+     */
+    public String formatReport() {
+        StringBuilder report = new StringBuilder("Frame latency by stage, milliseconds:");
+        report.append(System.lineSeparator());
+        report.append(String.format("  %-42s %8s %8s %8s %8s %8s%n", "stage", "count", "p50", "p90", "p99", "max"));
+        LatencyTrace.Stage previous = FIRST_STAGE;
+        for (Map.Entry<LatencyTrace.Stage, LatencyHistogram> entry : stageLatencies.entrySet()) {
+            appendLine(report, previous.getLabel() + " -> " + entry.getKey().getLabel(), entry.getValue());
+            previous = entry.getKey();
+        }
+        appendLine(report, "total " + FIRST_STAGE.getLabel() + " -> " + LAST_STAGE.getLabel(), totalLatency);
+        return report.toString();
+    }
+
+    private static void appendLine(StringBuilder report, String name, LatencyHistogram histogram) {
+        LatencySummary summary = histogram.getSummary();
+        report.append(String.format("  %-42s %8d %8.2f %8.2f %8.2f %8.2f%n",
+                name,
+                summary.getCount(),
+                summary.getP50Millis(),
+                summary.getP90Millis(),
+                summary.getP99Millis(),
+                summary.getMaxMillis()));
+    }
+
+}
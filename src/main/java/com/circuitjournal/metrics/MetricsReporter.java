@@ -0,0 +1,47 @@
+package com.circuitjournal.metrics;
+
+import java.io.PrintStream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Updates the metric rates periodically and writes a summary line to the log
+ */
+public class MetricsReporter implements AutoCloseable {
+
+    public static final long DEFAULT_INTERVAL_SECONDS = 10;
+
+    private final CaptureMetrics metrics;
+    private final PrintStream log;
+    private final ScheduledExecutorService executor;
+
+
+    /**
+     * @param log where the summary line is written, null to only update the rates
+     */
+    public MetricsReporter(CaptureMetrics metrics, long intervalSeconds, PrintStream log) {
+        this.metrics = metrics;
+        this.log = log;
+        this.executor = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+            Thread thread = new Thread(runnable, "metrics-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleAtFixedRate(this::report, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+
+    private void report() {
+        metrics.updateRates();
+        if (log != null) {
+            log.println("Metrics: " + metrics.formatSummary());
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+}
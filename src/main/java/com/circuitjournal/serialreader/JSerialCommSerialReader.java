@@ -3,12 +3,14 @@ package com.circuitjournal.serialreader;
  * Created by indrek on 1.05.2016.
  */
 
+import com.circuitjournal.metrics.CaptureMetrics;
 import com.fazecast.jSerialComm.SerialPort;
 import com.fazecast.jSerialComm.SerialPortDataListener;
 import com.fazecast.jSerialComm.SerialPortEvent;
 
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 import java.util.*;
 
@@ -16,11 +18,24 @@ import java.util.*;
 
 public class JSerialCommSerialReader implements SerialReader, SerialPortDataListener {
 
+  public enum ReadMode {
+    // Read on the jSerialComm event thread
+    EVENT_LISTENER,
+    // Blocking reads on a dedicated high priority thread
+    READER_THREAD
+  }
+
   private SerialPort serialPort;
   private InputStream serialInput;
   private OutputStream serialOutput;
 
   private static final int TIME_OUT = 2000;
+  // About 5 seconds of data at 2 Mbaud
+  private static final int RECEIVE_QUEUE_SIZE = 1024 * 1024;
+  // Port reads in the receive queue with their own read time, more reads share the time of an earlier one
+  private static final int RECEIVE_TIME_COUNT = 8192;
+  private static final long QUEUE_WAIT_NANOS = 100_000_000;
+  private static final int THREAD_STOP_TIME_OUT = 3000;
 
   public static final int BAUD_2000000 = 2000000;
   public static final int BAUD_1000000 = 1000000;
@@ -47,10 +62,29 @@ public class JSerialCommSerialReader implements SerialReader, SerialPortDataList
 
 
 
-  private SerialDataReceived serialReceivedCallback;
+  private volatile SerialDataReceived serialReceivedCallback;
+  private volatile SerialBufferReceived bufferReceivedCallback;
+
+  // Received bytes are decoded on the consumer thread in both read modes
+  private final ReadMode readMode;
+  private volatile SpscByteQueue receiveQueue;
+  private volatile ReceiveTimeRing receiveTimes;
+  private volatile SpscByteQueue.ByteSource portSource;
+  private volatile SerialTrafficRecorder trafficRecorder;
+  private volatile CaptureMetrics metrics;
+  // Queue sequence of the first byte being delivered by the consumer thread
+  private volatile long deliveredSequence;
+  private Thread readerThread;
+  private Thread consumerThread;
+  private volatile boolean listening = false;
 
 
   public JSerialCommSerialReader() {
+    this(ReadMode.EVENT_LISTENER);
+  }
+
+  public JSerialCommSerialReader(ReadMode readMode) {
+    this.readMode = readMode;
   }
 
 
@@ -59,6 +93,14 @@ public class JSerialCommSerialReader implements SerialReader, SerialPortDataList
     serialReceivedCallback = callback;
   }
 
+  /**
+   * The buffer handler gets a view of the receive queue, it replaces the data handler while set
+   */
+  @Override
+  public void setReceivedBufferHandler(SerialBufferReceived callback) {
+    bufferReceivedCallback = callback;
+  }
+
 
   public void startListening(String portName, Integer baudRate) {
     SerialPort serialPort = getSerialPorts().get(portName);
@@ -81,17 +123,25 @@ public class JSerialCommSerialReader implements SerialReader, SerialPortDataList
       serialPort = openSerialPort;
       serialPort.openPort();
 
-      serialPort.setComPortTimeouts(SerialPort.TIMEOUT_READ_BLOCKING, TIME_OUT, TIME_OUT);
       serialPort.setComPortParameters(
               baudRate,
               8,
               SerialPort.ONE_STOP_BIT,
               SerialPort.NO_PARITY);
 
+      if (readMode == ReadMode.READER_THREAD) {
+        // Semi-blocking read returns as soon as any bytes are available
+        serialPort.setComPortTimeouts(SerialPort.TIMEOUT_READ_SEMI_BLOCKING, TIME_OUT, TIME_OUT);
+      } else {
+        serialPort.setComPortTimeouts(SerialPort.TIMEOUT_READ_BLOCKING, TIME_OUT, TIME_OUT);
+      }
       serialInput = serialPort.getInputStream();
       serialOutput = serialPort.getOutputStream();
 
-      serialPort.addDataListener(this);
+      startReadingThreads(serialPort);
+      if (readMode == ReadMode.EVENT_LISTENER) {
+        serialPort.addDataListener(this);
+      }
     } catch (Exception e) {
       throw new SerialReaderException("Connect failed " + e.getMessage());
     }
@@ -103,17 +153,28 @@ public class JSerialCommSerialReader implements SerialReader, SerialPortDataList
     return SerialPort.LISTENING_EVENT_DATA_AVAILABLE;
   }
 
+  /**
+   * Event listener mode producer, only moves the available bytes into the receive queue
+   */
   @Override
-  public synchronized void serialEvent(SerialPortEvent oEvent) {
+  public void serialEvent(SerialPortEvent oEvent) {
     if (oEvent.getEventType() == SerialPort.LISTENING_EVENT_DATA_AVAILABLE) {
+      SpscByteQueue queue = receiveQueue;
+      SpscByteQueue.ByteSource source = portSource;
+      SerialPort port = serialPort;
+      if (queue == null || source == null || port == null) {
+        return;
+      }
       try {
-        if (serialReceivedCallback != null) {
-          int byteCount = serialInput.available();
-          if (byteCount > 0) {
-            byte [] data = new byte[byteCount];
-            serialInput.read(data, 0, byteCount);
-            serialReceivedCallback.serialDataReceived(data);
+        int byteCount = port.bytesAvailable();
+        while (byteCount > 0 && listening) {
+          int count = queue.writeFrom(source, byteCount);
+          if (count < 0) {
+            break;
+          } else if (count == 0) {
+            queue.awaitSpace(QUEUE_WAIT_NANOS);
           }
+          byteCount -= count;
         }
       } catch (Exception e) {
         e.printStackTrace(System.err);
@@ -122,10 +183,155 @@ public class JSerialCommSerialReader implements SerialReader, SerialPortDataList
   }
 
 
+  private void startReadingThreads(SerialPort port) {
+    // New queue for every start, stopping closes the queue for good
+    SpscByteQueue queue = new SpscByteQueue(RECEIVE_QUEUE_SIZE);
+    ReceiveTimeRing times = new ReceiveTimeRing(RECEIVE_TIME_COUNT);
+    receiveQueue = queue;
+    receiveTimes = times;
+    SpscByteQueue.ByteSource source = (bytes, offset, length) -> {
+      int count = port.readBytes(bytes, length, offset);
+      if (count > 0) {
+        // Recorded before the queue publishes the bytes
+        times.record(count, System.nanoTime());
+        SerialTrafficRecorder recorder = trafficRecorder;
+        if (recorder != null) {
+          recorder.record(bytes, offset, count);
+        }
+        CaptureMetrics captureMetrics = metrics;
+        if (captureMetrics != null) {
+          captureMetrics.addReceivedBytes(count);
+        }
+      }
+      return count;
+    };
+    portSource = source;
+    listening = true;
+
+    consumerThread = new Thread(() -> consumeSerialData(queue, times), "serial-consumer");
+    consumerThread.setDaemon(true);
+    consumerThread.start();
+
+    if (readMode == ReadMode.READER_THREAD) {
+      readerThread = new Thread(() -> readSerialData(queue, source), "serial-reader");
+      readerThread.setPriority(Thread.MAX_PRIORITY);
+      readerThread.setDaemon(true);
+      readerThread.start();
+    }
+  }
+
+
+  /**
+   * Reader thread only moves bytes from the port into the receive queue,
+   * so slow decoding never delays reading the port.
+   */
+  private void readSerialData(SpscByteQueue queue, SpscByteQueue.ByteSource source) {
+    try {
+      while (listening) {
+        int count = queue.writeFrom(source, Integer.MAX_VALUE);
+        if (count < 0) {
+          if (listening) {
+            System.err.println("Reading serial port failed");
+          }
+          break;
+        } else if (count == 0) {
+          queue.awaitSpace(QUEUE_WAIT_NANOS);
+        }
+      }
+    } catch (Exception e) {
+      if (listening) {
+        e.printStackTrace(System.err);
+      }
+    } finally {
+      queue.close();
+    }
+  }
+
+
+  private void consumeSerialData(SpscByteQueue queue, ReceiveTimeRing times) {
+    ReceivedBytesSink callbackSink = new ReceivedBytesSink();
+    while (listening) {
+      try {
+        if (queue.awaitData(QUEUE_WAIT_NANOS)) {
+          callbackSink.nextSequence = queue.getReadSequence();
+          queue.readTo(callbackSink);
+          times.release(queue.getReadSequence());
+        } else if (queue.isClosed()) {
+          break;
+        }
+      } catch (Exception e) {
+        e.printStackTrace(System.err);
+      }
+    }
+  }
+
+
+  /**
+   * Delivers queued bytes from the consumer thread, the buffer handler gets a reused read-only view
+   */
+  private class ReceivedBytesSink implements SpscByteQueue.ByteSink {
+    private byte [] viewArray;
+    private ByteBuffer view;
+    // Queue sequence of the next region
+    private long nextSequence;
+
+    @Override
+    public void write(byte [] bytes, int offset, int length) {
+      deliveredSequence = nextSequence;
+      nextSequence += length;
+      SerialBufferReceived bufferCallback = bufferReceivedCallback;
+      if (bufferCallback != null) {
+        if (viewArray != bytes) {
+          viewArray = bytes;
+          view = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+        }
+        view.clear();
+        view.position(offset);
+        view.limit(offset + length);
+        bufferCallback.serialBufferReceived(view);
+      } else {
+        SerialDataReceived callback = serialReceivedCallback;
+        if (callback != null) {
+          callback.serialDataReceived(Arrays.copyOfRange(bytes, offset, offset + length));
+        }
+      }
+    }
+  }
+
+
+  private void stopReadingThreads() {
+    listening = false;
+    if (receiveQueue != null) {
+      receiveQueue.close();
+    }
+    joinThread(readerThread);
+    joinThread(consumerThread);
+    readerThread = null;
+    consumerThread = null;
+    portSource = null;
+    receiveTimes = null;
+  }
+
+  private void joinThread(Thread thread) {
+    if (thread != null && thread != Thread.currentThread()) {
+      try {
+        thread.join(THREAD_STOP_TIME_OUT);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+
   public synchronized void stopListening() {
     if (serialPort != null) {
-      serialPort.removeDataListener();
+      listening = false;
+      if (readMode == ReadMode.EVENT_LISTENER) {
+        serialPort.removeDataListener();
+      }
+      // Closing the port releases the blocked read
       serialPort.closePort();
+      stopReadingThreads();
       serialPort = null;
       serialInput = null;
       serialOutput = null;
@@ -142,6 +348,62 @@ public class JSerialCommSerialReader implements SerialReader, SerialPortDataList
   }
 
 
+  /**
+   * Every received chunk is also given to the recorder on the reading thread.
+   * The recorder is not closed by the reader.
+   *
+   * @param recorder null to stop recording
+   */
+  public void setTrafficRecorder(SerialTrafficRecorder recorder) {
+    trafficRecorder = recorder;
+  }
+
+  /**
+   * Time of the port read that received the byte, bytes queued behind a slow decoder
+   * keep their own read time
+   */
+  @Override
+  public long getReceivedNanos(int index) {
+    ReceiveTimeRing times = receiveTimes;
+    return times != null ? times.getReceivedNanos(deliveredSequence + index) : System.nanoTime();
+  }
+
+  @Override
+  public void setMetrics(CaptureMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+
+  /**
+   * @return number of received bytes waiting to be decoded
+   */
+  public int getReceiveQueueSize() {
+    SpscByteQueue queue = receiveQueue;
+    return queue != null ? queue.getSize() : 0;
+  }
+
+  public int getReceiveQueueCapacity() {
+    SpscByteQueue queue = receiveQueue;
+    return queue != null ? queue.getCapacity() : 0;
+  }
+
+  /**
+   * @return max number of received bytes that have been waiting to be decoded
+   */
+  public long getReceiveQueueHighWaterMark() {
+    SpscByteQueue queue = receiveQueue;
+    return queue != null ? queue.getHighWaterMark() : 0;
+  }
+
+  /**
+   * @return number of times the receive queue was full and reading the port had to wait
+   */
+  public long getReceiveQueueOverflowCount() {
+    SpscByteQueue queue = receiveQueue;
+    return queue != null ? queue.getOverflowCount() : 0;
+  }
+
+
   public List<String> getAvailablePorts() {
     List<String> ports = new ArrayList<>(getSerialPorts().keySet());
     Collections.reverse(ports);
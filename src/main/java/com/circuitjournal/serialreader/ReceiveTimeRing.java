@@ -0,0 +1,90 @@
+package com.circuitjournal.serialreader;
+
+
+/**
+ * Read times of the bytes in a SpscByteQueue, one entry per port read with the queue
+ * sequence after the read. Written by the queue producer, read by the queue consumer.
+ *
+ * Entries are recorded before the read bytes are published to the queue, so the consumer
+ * always finds the entries of the bytes it has taken.
+ */
+class ReceiveTimeRing {
+
+  private final long [] endSequences;
+  private final long [] readNanos;
+  private final int mask;
+
+  // Written only by the producer
+  private long endSequence = 0;
+  private volatile long writeCount = 0;
+  // Written only by the consumer
+  private volatile long releasedCount = 0;
+
+
+  /**
+   * @param capacity max number of port reads waiting in the queue with their own time, rounded up to a power of two
+   */
+  ReceiveTimeRing(int capacity) {
+    int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+    endSequences = new long[size];
+    readNanos = new long[size];
+    mask = size - 1;
+  }
+
+
+  /**
+   * Producer: the next byteCount bytes written to the queue were read at receivedNanos
+   */
+  void record(int byteCount, long receivedNanos) {
+    endSequence += byteCount;
+    long count = writeCount;
+    if (count > 0 && count - releasedCount >= endSequences.length) {
+      // Ring full, the newest read takes the bytes. Its earlier time makes the
+      // latency of these bytes look longer, never shorter.
+      endSequences[(int) ((count - 1) & mask)] = endSequence;
+      writeCount = count;
+    } else {
+      int index = (int) (count & mask);
+      endSequences[index] = endSequence;
+      readNanos[index] = receivedNanos;
+      writeCount = count + 1;
+    }
+  }
+
+  /**
+   * Consumer: only for bytes already taken from the queue and not released
+   *
+   * @return System.nanoTime() of the port read that received the byte at the queue sequence
+   */
+  long getReceivedNanos(long sequence) {
+    long low = releasedCount;
+    long high = writeCount - 1;
+    if (high < low) {
+      return System.nanoTime();
+    }
+    // First read that ends after the byte
+    while (low < high) {
+      long middle = (low + high) >>> 1;
+      if (endSequences[(int) (middle & mask)] > sequence) {
+        high = middle;
+      } else {
+        low = middle + 1;
+      }
+    }
+    return readNanos[(int) (low & mask)];
+  }
+
+  /**
+   * Consumer: bytes before the queue sequence are done, their reads can be reused.
+   * The newest read is kept, the producer may still add bytes to it.
+   */
+  void release(long sequence) {
+    long released = releasedCount;
+    long newest = writeCount - 1;
+    while (released < newest && endSequences[(int) (released & mask)] <= sequence) {
+      released++;
+    }
+    releasedCount = released;
+  }
+
+}
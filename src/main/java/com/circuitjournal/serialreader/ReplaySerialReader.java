@@ -0,0 +1,297 @@
+package com.circuitjournal.serialreader;
+
+
+import com.circuitjournal.metrics.CaptureMetrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Serial reader that replays a captured byte stream from a file instead of a serial port.
+ *
+ * The port name is the path of the file. The file is either a SerialTrafficRecorder recording
+ * or plain received bytes. Bytes are delivered on the replay thread at the rate the given baud
+ * rate would deliver them, at the recorded times or as fast as the receiver takes them.
+ * Data sent to the device is discarded.
+ */
+public class ReplaySerialReader implements SerialReader {
+
+  public enum Pacing {
+    // Deliver bytes at the rate of the serial line, 10 bits per byte
+    REAL_TIME,
+    // Deliver the next chunk as soon as the previous one is decoded
+    AS_FAST_AS_POSSIBLE,
+    // Deliver chunks as they were received, plain byte files are replayed in REAL_TIME
+    RECORDED_TIMING
+  }
+
+  private static final int BITS_PER_BYTE = 10;
+  private static final int MAX_CHUNK_SIZE = 4096;
+  private static final int MIN_CHUNK_SIZE = 64;
+  private static final int STOP_TIME_OUT = 3000;
+
+  private final File replayFile;
+  private final Pacing pacing;
+  private int repeatCount = 1;
+
+  private volatile SerialDataReceived serialReceivedCallback;
+  private volatile SerialBufferReceived bufferReceivedCallback;
+  private volatile Runnable replayFinishedCallback;
+  private volatile CaptureMetrics metrics;
+  private volatile long deliverNanos;
+
+  private Thread replayThread;
+  private volatile boolean listening = false;
+  private volatile long replayedByteCount = 0;
+  private volatile long replayStartNanos = 0;
+  private volatile long replayEndNanos = 0;
+
+  // Read-only view of the replay thread chunk buffer, reused while the buffer stays the same
+  private ByteBuffer viewSource;
+  private ByteBuffer view;
+
+  private final OutputStream discardingOutput = new OutputStream() {
+    @Override
+    public void write(int b) {
+    }
+
+    @Override
+    public void write(byte [] b, int off, int len) {
+    }
+  };
+
+
+  public ReplaySerialReader(File replayFile, Pacing pacing) {
+    this.replayFile = replayFile;
+    this.pacing = pacing;
+  }
+
+
+  @Override
+  public void setReceivedDataHandler(SerialDataReceived callback) {
+    serialReceivedCallback = callback;
+  }
+
+  @Override
+  public void setReceivedBufferHandler(SerialBufferReceived callback) {
+    bufferReceivedCallback = callback;
+  }
+
+  /**
+   * Called from the replay thread after the last byte is delivered
+   */
+  public void setReplayFinishedHandler(Runnable callback) {
+    replayFinishedCallback = callback;
+  }
+
+  @Override
+  public long getReceivedNanos(int index) {
+    return deliverNanos;
+  }
+
+  @Override
+  public void setMetrics(CaptureMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * @param repeatCount number of times the file is replayed
+   */
+  public void setRepeatCount(int repeatCount) {
+    this.repeatCount = Math.max(1, repeatCount);
+  }
+
+
+  @Override
+  public List<String> getAvailablePorts() {
+    return Collections.singletonList(replayFile.getPath());
+  }
+
+  @Override
+  public List<Integer> getAvailableBaudRates() {
+    return Arrays.asList(
+        JSerialCommSerialReader.BAUD_2000000,
+        JSerialCommSerialReader.BAUD_1000000,
+        JSerialCommSerialReader.BAUD_500000,
+        JSerialCommSerialReader.BAUD_250000,
+        JSerialCommSerialReader.BAUD_230400,
+        JSerialCommSerialReader.BAUD_115200);
+  }
+
+  @Override
+  public Integer getDefaultBaudRate(Integer overrideBaudRate) {
+    return overrideBaudRate != null ? overrideBaudRate : JSerialCommSerialReader.BAUD_500000;
+  }
+
+
+  @Override
+  public synchronized void startListening(String portName, Integer baudRate) {
+    File file = new File(portName);
+    if (!file.isFile()) {
+      throw new SerialReaderException("'" + portName + "' not found");
+    }
+    stopListening();
+
+    int bytesPerSecond = getDefaultBaudRate(baudRate) / BITS_PER_BYTE;
+    replayedByteCount = 0;
+    replayStartNanos = 0;
+    replayEndNanos = 0;
+    listening = true;
+    replayThread = new Thread(() -> replay(file, bytesPerSecond), "serial-replay");
+    replayThread.setDaemon(true);
+    replayThread.start();
+  }
+
+  @Override
+  public synchronized void stopListening() {
+    listening = false;
+    if (replayThread != null) {
+      if (replayThread != Thread.currentThread()) {
+        LockSupport.unpark(replayThread);
+        try {
+          replayThread.join(STOP_TIME_OUT);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      replayThread = null;
+    }
+  }
+
+  @Override
+  public boolean isListening() {
+    return listening;
+  }
+
+  @Override
+  public OutputStream getOutputStream() {
+    return listening ? discardingOutput : null;
+  }
+
+
+  private void replay(File file, int bytesPerSecond) {
+    boolean trafficRecording = SerialTrafficReader.isSerialTrafficRecording(file);
+    replayStartNanos = System.nanoTime();
+    try {
+      for (int i = 0; i < repeatCount && listening; i++) {
+        if (trafficRecording) {
+          replayTrafficRecording(file, bytesPerSecond);
+        } else {
+          replayBytes(file, bytesPerSecond);
+        }
+      }
+    } catch (IOException e) {
+      System.err.println("Replaying " + file + " failed: " + e.getMessage());
+    }
+    replayEndNanos = System.nanoTime();
+
+    boolean finished = listening;
+    listening = false;
+    Runnable callback = replayFinishedCallback;
+    if (finished && callback != null) {
+      callback.run();
+    }
+  }
+
+  private void replayBytes(File file, int bytesPerSecond) throws IOException {
+    // About one millisecond of data per chunk in real time
+    int chunkSize = pacing != Pacing.AS_FAST_AS_POSSIBLE
+        ? Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, bytesPerSecond / 1000))
+        : MAX_CHUNK_SIZE;
+    ByteBuffer readBuffer = ByteBuffer.allocate(chunkSize);
+
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      while (listening && channel.read(readBuffer) >= 0) {
+        readBuffer.flip();
+        if (readBuffer.hasRemaining()) {
+          if (pacing != Pacing.AS_FAST_AS_POSSIBLE) {
+            waitUntil(replayStartNanos + replayedByteCount * 1_000_000_000L / bytesPerSecond);
+          }
+          deliver(readBuffer);
+        }
+        readBuffer.clear();
+      }
+    }
+  }
+
+  private void replayTrafficRecording(File file, int bytesPerSecond) throws IOException {
+    long passStartNanos = System.nanoTime();
+    try (SerialTrafficReader reader = new SerialTrafficReader(file)) {
+      ByteBuffer chunk;
+      while (listening && (chunk = reader.readChunk()) != null) {
+        if (pacing == Pacing.RECORDED_TIMING) {
+          waitUntil(passStartNanos + reader.getChunkNanos());
+        } else if (pacing == Pacing.REAL_TIME) {
+          waitUntil(replayStartNanos + replayedByteCount * 1_000_000_000L / bytesPerSecond);
+        }
+        deliver(chunk);
+      }
+    }
+  }
+
+  private void waitUntil(long dueNanos) {
+    long waitNanos;
+    while (listening && (waitNanos = dueNanos - System.nanoTime()) > 0) {
+      LockSupport.parkNanos(this, waitNanos);
+    }
+  }
+
+  private void deliver(ByteBuffer chunk) {
+    int length = chunk.remaining();
+    deliverNanos = System.nanoTime();
+    SerialBufferReceived bufferCallback = bufferReceivedCallback;
+    SerialDataReceived callback = serialReceivedCallback;
+    try {
+      if (bufferCallback != null) {
+        if (viewSource != chunk) {
+          viewSource = chunk;
+          view = chunk.asReadOnlyBuffer();
+        }
+        view.clear();
+        view.position(chunk.position());
+        view.limit(chunk.limit());
+        bufferCallback.serialBufferReceived(view);
+      } else if (callback != null) {
+        byte [] bytes = new byte[length];
+        chunk.duplicate().get(bytes);
+        callback.serialDataReceived(bytes);
+      }
+    } catch (Exception e) {
+      e.printStackTrace(System.err);
+    }
+    replayedByteCount += length;
+    CaptureMetrics captureMetrics = metrics;
+    if (captureMetrics != null) {
+      captureMetrics.addReceivedBytes(length);
+    }
+  }
+
+
+  /**
+   * @return number of bytes delivered since replay started
+   */
+  public long getReplayedByteCount() {
+    return replayedByteCount;
+  }
+
+  /**
+   * @return nanoseconds from the start of the replay to the last delivered byte, or until now if still running
+   */
+  public long getReplayNanos() {
+    long start = replayStartNanos;
+    if (start == 0) {
+      return 0;
+    }
+    long end = replayEndNanos;
+    return (end != 0 ? end : System.nanoTime()) - start;
+  }
+
+}
@@ -1,6 +1,9 @@
 package com.circuitjournal.serialreader;
 
+import com.circuitjournal.metrics.CaptureMetrics;
+
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 public interface SerialReader {
@@ -9,8 +12,41 @@ public interface SerialReader {
         void serialDataReceived(byte [] bytes);
     }
 
+    /**
+     * Receives a read-only view of the received bytes between position and limit.
+     * The buffer is reused, it is valid only until the call returns.
+     */
+    interface SerialBufferReceived {
+        void serialBufferReceived(ByteBuffer buffer);
+    }
+
     void setReceivedDataHandler(SerialDataReceived callback);
 
+    /**
+     * Alternative to setReceivedDataHandler that does not copy the received bytes
+     */
+    default void setReceivedBufferHandler(SerialBufferReceived callback) {
+        setReceivedDataHandler(callback == null ? null : (bytes) -> callback.serialBufferReceived(ByteBuffer.wrap(bytes).asReadOnlyBuffer()));
+    }
+
+    /**
+     * Only valid while the received data handler runs, for latency measurements
+     *
+     * @param index index of the byte in the bytes given to the handler, from the buffer position
+     * @return System.nanoTime() when the byte was received
+     */
+    default long getReceivedNanos(int index) {
+        return System.nanoTime();
+    }
+
+    /**
+     * Count received bytes in the metrics
+     *
+     * @param metrics null to stop counting
+     */
+    default void setMetrics(CaptureMetrics metrics) {
+    }
+
     List<String> getAvailablePorts();
     List<Integer> getAvailableBaudRates();
     Integer getDefaultBaudRate(Integer overrideBaudRate);
@@ -0,0 +1,126 @@
+package com.circuitjournal.serialreader;
+
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a serial data recording written by SerialTrafficRecorder chunk by chunk.
+ */
+public class SerialTrafficReader implements Closeable {
+
+  private static final int INITIAL_CHUNK_BUFFER_SIZE = 64 * 1024;
+
+  private final FileChannel channel;
+  private final long recordingStartMillis;
+  private final ByteBuffer recordHeader = ByteBuffer.allocate(SerialTrafficRecorder.RECORD_HEADER_SIZE);
+  private ByteBuffer chunk = ByteBuffer.allocate(INITIAL_CHUNK_BUFFER_SIZE);
+  private long chunkNanos = 0;
+
+
+  public SerialTrafficReader(File file) throws IOException {
+    channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    try {
+      ByteBuffer header = ByteBuffer.allocate(SerialTrafficRecorder.FILE_HEADER_SIZE);
+      if (!readFully(header)) {
+        throw new IOException("Not a serial data recording: " + file);
+      }
+      header.flip();
+      if (header.getInt() != SerialTrafficRecorder.FILE_MAGIC) {
+        throw new IOException("Not a serial data recording: " + file);
+      }
+      int version = header.getInt();
+      if (version != SerialTrafficRecorder.FORMAT_VERSION) {
+        throw new IOException("Unsupported serial data recording version " + version);
+      }
+      recordingStartMillis = header.getLong();
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+
+  /**
+   * @return true if the file starts with the serial data recording header
+   */
+  public static boolean isSerialTrafficRecording(File file) {
+    try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      ByteBuffer magic = ByteBuffer.allocate(4);
+      while (magic.hasRemaining() && fileChannel.read(magic) >= 0) {
+      }
+      return !magic.hasRemaining() && magic.getInt(0) == SerialTrafficRecorder.FILE_MAGIC;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+
+  /**
+   * The returned buffer is reused by the next call. A recording cut off in the middle of a record,
+   * for example by killing the recording process, ends with the last complete chunk.
+   *
+   * @return bytes of the next received chunk between position and limit, null at the end of the file
+   */
+  public ByteBuffer readChunk() throws IOException {
+    recordHeader.clear();
+    if (!readFully(recordHeader)) {
+      return null;
+    }
+    recordHeader.flip();
+    chunkNanos = recordHeader.getLong();
+    int length = recordHeader.getInt();
+    if (length < 0) {
+      throw new IOException("Invalid chunk length " + length);
+    }
+    if (length > channel.size() - channel.position()) {
+      // Recording was cut off in the middle of a chunk, same as in the middle of a record header
+      return null;
+    }
+
+    if (chunk.capacity() < length) {
+      chunk = ByteBuffer.allocate(Math.max(length, chunk.capacity() * 2));
+    }
+    chunk.clear();
+    chunk.limit(length);
+    if (!readFully(chunk)) {
+      return null;
+    }
+    chunk.flip();
+    return chunk;
+  }
+
+  /**
+   * @return receive time of the last read chunk in nanoseconds since the recording started
+   */
+  public long getChunkNanos() {
+    return chunkNanos;
+  }
+
+  public long getRecordingStartMillis() {
+    return recordingStartMillis;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+
+  /**
+   * @return false if the file ended before the buffer was filled
+   */
+  private boolean readFully(ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+}
@@ -0,0 +1,196 @@
+package com.circuitjournal.serialreader;
+
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Appends received serial data to a file, exactly as received and with the time it was received.
+ *
+ * record() only copies the chunk into a queue, a background thread writes the queue to disk.
+ * The reading thread never waits for the disk, if the queue is full the chunk is dropped and counted.
+ *
+ * File layout, big endian:
+ *   header: int FILE_MAGIC, int FORMAT_VERSION, long recording start time in epoch milliseconds
+ *   record: long nanoseconds since recording start (monotonic), int byte count, received bytes
+ */
+public class SerialTrafficRecorder implements Closeable {
+
+  public static final String FILE_EXTENSION = ".aicserial";
+  public static final int FILE_MAGIC = 0x41494353; // "AICS"
+  public static final int FORMAT_VERSION = 1;
+  public static final int FILE_HEADER_SIZE = 16;
+  public static final int RECORD_HEADER_SIZE = 12;
+
+  public static final int DEFAULT_BUFFER_SIZE = 4 * 1024 * 1024;
+
+  private static final long WRITER_WAIT_NANOS = 100_000_000;
+  private static final long STOP_TIME_OUT = 10_000;
+
+  private final File file;
+  private final FileChannel channel;
+  private final SpscByteQueue queue;
+  private final Thread writerThread;
+  private final long startNanos;
+
+  // Used only by the recording thread
+  private final byte [] recordHeader = new byte[RECORD_HEADER_SIZE];
+
+  private volatile long recordedByteCount = 0;
+  private volatile long droppedChunkCount = 0;
+  private volatile boolean closed = false;
+
+
+  public SerialTrafficRecorder(File file) throws IOException {
+    this(file, DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * @param bufferSize bytes waiting to be written, chunks are dropped when it is full
+   */
+  public SerialTrafficRecorder(File file, int bufferSize) throws IOException {
+    this.file = file;
+    this.queue = new SpscByteQueue(bufferSize);
+    this.channel = FileChannel.open(file.toPath(),
+        StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING);
+    this.startNanos = System.nanoTime();
+
+    ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+    header.putInt(FILE_MAGIC);
+    header.putInt(FORMAT_VERSION);
+    header.putLong(System.currentTimeMillis());
+    header.flip();
+    writeFully(header);
+
+    writerThread = new Thread(this::writeQueuedData, "serial-traffic-writer");
+    writerThread.setDaemon(true);
+    writerThread.start();
+  }
+
+
+  /**
+   * Only one thread may record, it is never blocked.
+   *
+   * @return false if the chunk was dropped because the writer is behind or the recorder is closed
+   */
+  public boolean record(byte [] bytes, int offset, int length) {
+    long timeNanos = System.nanoTime() - startNanos;
+    if (closed || queue.getFreeSpace() < RECORD_HEADER_SIZE + length) {
+      droppedChunkCount++;
+      return false;
+    }
+    putLong(recordHeader, 0, timeNanos);
+    putInt(recordHeader, 8, length);
+    queue.offer(recordHeader, 0, RECORD_HEADER_SIZE);
+    queue.offer(bytes, offset, length);
+    recordedByteCount += length;
+    return true;
+  }
+
+
+  private void writeQueuedData() {
+    FileSink fileSink = new FileSink();
+    try {
+      while (true) {
+        if (queue.awaitData(WRITER_WAIT_NANOS)) {
+          queue.readTo(fileSink);
+          if (fileSink.error != null) {
+            throw fileSink.error;
+          }
+        } else if (queue.isClosed()) {
+          break;
+        }
+      }
+    } catch (IOException e) {
+      System.err.println("Recording serial data to " + file + " failed: " + e.getMessage());
+      closed = true;
+    }
+  }
+
+  /**
+   * Writes queued regions straight from the queue array
+   */
+  private class FileSink implements SpscByteQueue.ByteSink {
+    private byte [] viewArray;
+    private ByteBuffer view;
+    private IOException error;
+
+    @Override
+    public void write(byte [] bytes, int offset, int length) {
+      if (error != null) {
+        return;
+      }
+      if (viewArray != bytes) {
+        viewArray = bytes;
+        view = ByteBuffer.wrap(bytes);
+      }
+      view.clear();
+      view.position(offset);
+      view.limit(offset + length);
+      try {
+        writeFully(view);
+      } catch (IOException e) {
+        error = e;
+      }
+    }
+  }
+
+  private void writeFully(ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  private static void putLong(byte [] bytes, int offset, long value) {
+    putInt(bytes, offset, (int) (value >>> 32));
+    putInt(bytes, offset + 4, (int) value);
+  }
+
+  private static void putInt(byte [] bytes, int offset, int value) {
+    bytes[offset] = (byte) (value >>> 24);
+    bytes[offset + 1] = (byte) (value >>> 16);
+    bytes[offset + 2] = (byte) (value >>> 8);
+    bytes[offset + 3] = (byte) value;
+  }
+
+
+  /**
+   * Stops recording and waits until the recorded data is written
+   */
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    queue.close();
+    try {
+      writerThread.join(STOP_TIME_OUT);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    channel.close();
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * @return number of received bytes queued to be written
+   */
+  public long getRecordedByteCount() {
+    return recordedByteCount;
+  }
+
+  /**
+   * @return number of received chunks not recorded because the writer was behind
+   */
+  public long getDroppedChunkCount() {
+    return droppedChunkCount;
+  }
+
+}
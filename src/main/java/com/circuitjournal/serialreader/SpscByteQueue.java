@@ -0,0 +1,292 @@
+package com.circuitjournal.serialreader;
+
+
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free byte queue between exactly one producer thread and one consumer thread.
+ *
+ * Bytes are read into and handed out from the preallocated array directly, moving
+ * bytes through the queue does not allocate. The write and read sequences are padded
+ * so that the two threads do not share a cache line when updating them.
+ */
+public class SpscByteQueue {
+
+  public interface ByteSource {
+    /**
+     * @return number of bytes written to the buffer, 0 if nothing was available, -1 if the source is closed
+     */
+    int read(byte [] buffer, int offset, int length) throws IOException;
+  }
+
+  public interface ByteSink {
+    void write(byte [] buffer, int offset, int length);
+  }
+
+
+  private static final long PRODUCER_PARK_NANOS = 50_000;
+
+
+  private final byte [] buffer;
+  private final int mask;
+  private final int refreshThreshold;
+
+  // Written only by the producer
+  private final PaddedSequence writeSequence = new PaddedSequence();
+  // Written only by the consumer
+  private final PaddedSequence readSequence = new PaddedSequence();
+
+  // Producer side copy of the read sequence, refreshed only when the queue looks nearly full
+  private long cachedReadSequence = 0;
+  private boolean full = false;
+
+  private volatile long highWaterMark = 0;
+  private volatile long overflowCount = 0;
+  private volatile Thread waitingConsumer;
+  private volatile boolean closed = false;
+
+
+  /**
+   * @param capacity rounded up to a power of two
+   */
+  public SpscByteQueue(int capacity) {
+    int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+    buffer = new byte[size];
+    mask = size - 1;
+    refreshThreshold = Math.max(1, size / 4);
+  }
+
+
+  /**
+   * Producer: reads from the source straight into the free space of the queue.
+   * Does not wait, returns 0 if the queue is full.
+   *
+   * @param maxLength max number of bytes to read from the source
+   * @return number of bytes read from the source, -1 if the source is closed
+   */
+  public int writeFrom(ByteSource source, int maxLength) throws IOException {
+    long writePosition = writeSequence.value;
+    int free = getFreeSpace(writePosition);
+    if (free == 0) {
+      if (!full) {
+        full = true;
+        overflowCount++;
+      }
+      return 0;
+    }
+    full = false;
+
+    int offset = (int) (writePosition & mask);
+    int length = Math.min(Math.min(free, buffer.length - offset), maxLength);
+    int count = source.read(buffer, offset, length);
+    if (count > 0) {
+      publish(writePosition + count);
+    }
+    return count;
+  }
+
+  /**
+   * Producer: copies as many bytes as fit into the queue, does not wait.
+   *
+   * @return number of bytes copied
+   */
+  public int write(byte [] bytes, int offset, int length) {
+    long writePosition = writeSequence.value;
+    int count = Math.min(length, getFreeSpace(writePosition));
+    if (count == 0) {
+      return 0;
+    }
+    int bufferOffset = (int) (writePosition & mask);
+    int firstPart = Math.min(count, buffer.length - bufferOffset);
+    System.arraycopy(bytes, offset, buffer, bufferOffset, firstPart);
+    System.arraycopy(bytes, offset + firstPart, buffer, 0, count - firstPart);
+    publish(writePosition + count);
+    return count;
+  }
+
+  /**
+   * Producer: copies all bytes into the queue or nothing if they do not fit, does not wait.
+   */
+  public boolean offer(byte [] bytes, int offset, int length) {
+    if (getFreeSpace() < length) {
+      return false;
+    }
+    write(bytes, offset, length);
+    return true;
+  }
+
+  /**
+   * Producer: space that can be written without waiting, only grows until the producer writes
+   */
+  public int getFreeSpace() {
+    long writePosition = writeSequence.value;
+    cachedReadSequence = readSequence.value;
+    return buffer.length - (int) (writePosition - cachedReadSequence);
+  }
+
+  private int getFreeSpace(long writePosition) {
+    int free = buffer.length - (int) (writePosition - cachedReadSequence);
+    if (free < refreshThreshold) {
+      cachedReadSequence = readSequence.value;
+      free = buffer.length - (int) (writePosition - cachedReadSequence);
+    }
+    return free;
+  }
+
+  private void publish(long writePosition) {
+    writeSequence.value = writePosition;
+    long size = writePosition - readSequence.value;
+    if (size > highWaterMark) {
+      highWaterMark = size;
+    }
+    Thread consumer = waitingConsumer;
+    if (consumer != null) {
+      LockSupport.unpark(consumer);
+    }
+  }
+
+  /**
+   * Producer: waits until there is free space in the queue.
+   *
+   * @return false if the queue is still full after the timeout or the queue is closed
+   */
+  public boolean awaitSpace(long timeoutNanos) {
+    long deadline = System.nanoTime() + timeoutNanos;
+    while (!closed) {
+      if (getFreeSpace(writeSequence.value) > 0) {
+        return true;
+      }
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0 || Thread.currentThread().isInterrupted()) {
+        return false;
+      }
+      LockSupport.parkNanos(this, Math.min(remaining, PRODUCER_PARK_NANOS));
+    }
+    return false;
+  }
+
+
+  /**
+   * Consumer: hands the available bytes to the sink without copying.
+   * Does not wait, the sink may be called twice when the data wraps around the end of the buffer.
+   *
+   * @return number of bytes handed to the sink
+   */
+  public int readTo(ByteSink sink) {
+    long readPosition = readSequence.value;
+    int size = (int) (writeSequence.value - readPosition);
+    int total = 0;
+    while (total < size) {
+      int offset = (int) ((readPosition + total) & mask);
+      int length = Math.min(size - total, buffer.length - offset);
+      sink.write(buffer, offset, length);
+      total += length;
+    }
+    // Region is free for the producer only after the sink is done with it
+    readSequence.value = readPosition + total;
+    return total;
+  }
+
+  /**
+   * Consumer: sequence of the next byte to read, the number of bytes read since the queue was created
+   */
+  public long getReadSequence() {
+    return readSequence.value;
+  }
+
+  /**
+   * Consumer: waits until data is available.
+   *
+   * @return false if the queue is still empty after the timeout or the queue is closed and empty
+   */
+  public boolean awaitData(long timeoutNanos) {
+    if (!isEmpty()) {
+      return true;
+    }
+    long deadline = System.nanoTime() + timeoutNanos;
+    waitingConsumer = Thread.currentThread();
+    try {
+      while (isEmpty() && !closed) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0 || Thread.currentThread().isInterrupted()) {
+          break;
+        }
+        LockSupport.parkNanos(this, remaining);
+      }
+    } finally {
+      waitingConsumer = null;
+    }
+    return !isEmpty();
+  }
+
+
+  /**
+   * Consumer: drops the queued bytes
+   */
+  public void clear() {
+    readSequence.value = writeSequence.value;
+  }
+
+  /**
+   * Wakes up waiting threads, remaining bytes can still be read.
+   * A closed queue is not opened again, clear() does not reset it.
+   */
+  public void close() {
+    closed = true;
+    Thread consumer = waitingConsumer;
+    if (consumer != null) {
+      LockSupport.unpark(consumer);
+    }
+  }
+
+  public boolean isClosed() {
+    return closed;
+  }
+
+  public boolean isEmpty() {
+    return writeSequence.value == readSequence.value;
+  }
+
+
+  /**
+   * @return number of bytes waiting for the consumer
+   */
+  public int getSize() {
+    long readPosition = readSequence.value;
+    return (int) (writeSequence.value - readPosition);
+  }
+
+  public int getCapacity() {
+    return buffer.length;
+  }
+
+  /**
+   * @return max number of bytes that have been waiting in the queue
+   */
+  public long getHighWaterMark() {
+    return highWaterMark;
+  }
+
+  /**
+   * @return number of times the producer found the queue full and had to wait
+   */
+  public long getOverflowCount() {
+    return overflowCount;
+  }
+
+
+  // Superclass fields are laid out first, so the value is padded on both sides
+  private static class LeftPadding {
+    long p1, p2, p3, p4, p5, p6, p7;
+  }
+
+  private static class Sequence extends LeftPadding {
+    volatile long value;
+  }
+
+  private static class PaddedSequence extends Sequence {
+    long p9, p10, p11, p12, p13, p14, p15;
+  }
+
+}
@@ -0,0 +1,144 @@
+package com.circuitjournal.storage;
+
+import com.circuitjournal.capture.FrameSnapshot;
+import com.circuitjournal.metrics.CaptureMetrics;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes frames on a background thread so that encoding and disk writes
+ * never block the capture or UI threads.
+ *
+ * Frames are written in the order they are queued. If the queue is full the
+ * newest frame is dropped and counted, the caller is never blocked.
+ */
+public class AsyncFrameWriter {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 8;
+
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
+
+    public interface FrameWritten {
+        void frameWritten(int writtenCount);
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicInteger writtenCount = new AtomicInteger();
+    private final AtomicInteger droppedCount = new AtomicInteger();
+    private final FrameWritten frameWrittenCallback;
+    private volatile CaptureMetrics metrics;
+
+
+    /**
+     * @param queueCapacity max number of frames waiting to be written
+     * @param frameWrittenCallback called from the writer thread after each successful write, may be null
+     */
+    public AsyncFrameWriter(int queueCapacity, FrameWritten frameWrittenCallback) {
+        this.frameWrittenCallback = frameWrittenCallback;
+        this.executor = new ThreadPoolExecutor(
+                1, 1,
+                30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                (runnable) -> {
+                    Thread thread = new Thread(runnable, "frame-writer");
+                    thread.setPriority(Thread.NORM_PRIORITY - 1);
+                    return thread;
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+
+    /**
+     * Record the time from queueing a frame to the frame written in the metrics
+     *
+     * @param metrics null to stop recording
+     */
+    public void setMetrics(CaptureMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Queue frame to be written to the sink
+     *
+     * @return false if the frame was dropped because the queue is full or the writer is shut down
+     */
+    public boolean write(FrameSnapshot frame, FrameSink sink) {
+        try {
+            long queuedNanos = System.nanoTime();
+            executor.execute(() -> writeFrame(frame, sink, queuedNanos));
+            return true;
+        } catch (RejectedExecutionException e) {
+            droppedCount.incrementAndGet();
+            return false;
+        }
+    }
+
+    private void writeFrame(FrameSnapshot frame, FrameSink sink, long queuedNanos) {
+        try {
+            sink.write(frame);
+            int count = writtenCount.incrementAndGet();
+            CaptureMetrics captureMetrics = metrics;
+            if (captureMetrics != null) {
+                captureMetrics.getSaveLatencyHistogram().recordSince(queuedNanos);
+            }
+            if (frameWrittenCallback != null) {
+                frameWrittenCallback.frameWritten(count);
+            }
+        } catch (Exception e) {
+            System.out.println("Saving file failed: " + e.getMessage());
+        }
+    }
+
+
+    /**
+     * Close the sink after the frames already queued for it are written
+     */
+    public void close(FrameSink sink) {
+        try {
+            executor.execute(() -> closeSink(sink));
+        } catch (RejectedExecutionException e) {
+            // Queue is full or writer is shut down, frames still queued for the sink fail to write
+            closeSink(sink);
+        }
+    }
+
+    private void closeSink(FrameSink sink) {
+        try {
+            sink.close();
+        } catch (Exception e) {
+            System.out.println("Closing file failed: " + e.getMessage());
+        }
+    }
+
+
+    public int getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    public int getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public int getQueuedCount() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Stop accepting frames and wait for queued frames to be written
+     */
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                System.err.println("Frame writer did not finish, " + getQueuedCount() + " frames not saved");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,19 @@
+package com.circuitjournal.storage;
+
+import com.circuitjournal.capture.FrameSnapshot;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Destination for finished frames. Called from the frame writer thread.
+ */
+public interface FrameSink extends Closeable {
+
+    void write(FrameSnapshot frame) throws IOException;
+
+    @Override
+    default void close() throws IOException {
+    }
+
+}
@@ -0,0 +1,58 @@
+package com.circuitjournal.storage;
+
+import com.circuitjournal.capture.FrameSnapshot;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Saves each frame to its own png file named by the capture time
+ */
+public class PngFileSink implements FrameSink {
+
+    private final File folder;
+
+    public PngFileSink(File folder) {
+        this.folder = folder;
+    }
+
+    @Override
+    public void write(FrameSnapshot frame) throws IOException {
+        File newFile = new File(folder.getAbsolutePath(), getFileName(frame));
+        if (!ImageIO.write(toBufferedImage(frame), "png", newFile)) {
+            throw new IOException("No png writer available");
+        }
+    }
+
+    /**
+     * Copies the snapshot pixels into a new image, the snapshot stays unchanged
+     */
+    public static BufferedImage toBufferedImage(FrameSnapshot frame) {
+        DirectColorModel colorModel = (DirectColorModel) ColorModel.getRGBdefault();
+        int[] argbPixels = new int[frame.getWidth() * frame.getHeight()];
+        frame.copyArgbPixels(argbPixels, 0);
+        DataBufferInt dataBuffer = new DataBufferInt(argbPixels, argbPixels.length);
+        WritableRaster raster = Raster.createPackedRaster(
+                dataBuffer,
+                frame.getWidth(),
+                frame.getHeight(),
+                frame.getWidth(),
+                colorModel.getMasks(),
+                null);
+        return new BufferedImage(colorModel, raster, false, null);
+    }
+
+    private String getFileName(FrameSnapshot frame) {
+        return (new SimpleDateFormat("yyyy-MM-dd_HH.mm.ss.SSS")).format(new Date(frame.getCaptureTimeMillis())) + ".png";
+    }
+
+}
@@ -0,0 +1,98 @@
+package com.circuitjournal.storage;
+
+import com.circuitjournal.capture.FrameSnapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Appends frames to a single recording file without any encoding.
+ *
+ * File layout (big endian):
+ * <pre>
+ * file header:  int FILE_MAGIC, int FORMAT_VERSION
+ * frame header: int FRAME_MARKER, short width, short height, byte pixel format ordinal,
+ *               long capture time millis, int invalid pixel count
+ * frame data:   width * height packed 0xAARRGGBB ints
+ * </pre>
+ * Use {@link RawRecordingReader} or {@link RawRecordingExporter} to read it back.
+ */
+public class RawFrameRecorder implements FrameSink {
+
+    public static final String FILE_EXTENSION = ".aicraw";
+
+    static final int FILE_MAGIC = 0x41494352; // "AICR"
+    static final int FORMAT_VERSION = 1;
+    static final int FILE_HEADER_SIZE = 8;
+    static final int FRAME_MARKER = 0x46524D45; // "FRME"
+    static final int FRAME_HEADER_SIZE = 4 + 2 + 2 + 1 + 8 + 4;
+
+    private final File file;
+    private final FileChannel channel;
+    private ByteBuffer buffer;
+    private int frameCount = 0;
+
+
+    public RawFrameRecorder(File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.buffer = ByteBuffer.allocateDirect(FILE_HEADER_SIZE);
+        buffer.putInt(FILE_MAGIC);
+        buffer.putInt(FORMAT_VERSION);
+        buffer.flip();
+        writeBuffer();
+    }
+
+
+    @Override
+    public synchronized void write(FrameSnapshot frame) throws IOException {
+        if (!channel.isOpen()) {
+            throw new IOException("Recording " + file.getName() + " is closed");
+        }
+        int pixelCount = frame.getWidth() * frame.getHeight();
+        int recordSize = FRAME_HEADER_SIZE + pixelCount * 4;
+        if (buffer.capacity() < recordSize) {
+            buffer = ByteBuffer.allocateDirect(recordSize);
+        }
+
+        buffer.clear();
+        buffer.putInt(FRAME_MARKER);
+        buffer.putShort((short) frame.getWidth());
+        buffer.putShort((short) frame.getHeight());
+        buffer.put((byte) frame.getPixelFormat().ordinal());
+        buffer.putLong(frame.getCaptureTimeMillis());
+        buffer.putInt(frame.getInvalidPixelCount());
+        frame.copyArgbPixels(buffer.asIntBuffer());
+        buffer.position(recordSize);
+        buffer.flip();
+        writeBuffer();
+        frameCount++;
+    }
+
+    private void writeBuffer() throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+
+    public File getFile() {
+        return file;
+    }
+
+    public synchronized int getFrameCount() {
+        return frameCount;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+}
@@ -0,0 +1,61 @@
+package com.circuitjournal.storage;
+
+import com.circuitjournal.capture.FrameSnapshot;
+
+import javax.imageio.ImageIO;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Converts a raw frame recording to png files
+ *
+ * Usage: java -cp ArduImageCapture.jar com.circuitjournal.storage.RawRecordingExporter recording.aicraw [output folder]
+ */
+public class RawRecordingExporter {
+
+    public static void main(String[] args) {
+        if (args.length < 1 || args.length > 2) {
+            System.out.println("Usage: RawRecordingExporter <recording" + RawFrameRecorder.FILE_EXTENSION + "> [output folder]");
+            System.exit(1);
+        }
+
+        File recording = new File(args[0]);
+        File outputFolder = args.length > 1 ? new File(args[1]) : getDefaultOutputFolder(recording);
+        try {
+            int frameCount = export(recording, outputFolder);
+            System.out.println("Exported " + frameCount + " frames to " + outputFolder.getAbsolutePath());
+        } catch (IOException e) {
+            System.err.println("Export failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return number of exported frames
+     */
+    public static int export(File recording, File outputFolder) throws IOException {
+        if (!outputFolder.isDirectory() && !outputFolder.mkdirs()) {
+            throw new IOException("Can't create folder " + outputFolder.getAbsolutePath());
+        }
+
+        int frameCount = 0;
+        try (RawRecordingReader reader = new RawRecordingReader(recording)) {
+            FrameSnapshot frame;
+            while ((frame = reader.readFrame()) != null) {
+                frameCount++;
+                File pngFile = new File(outputFolder, String.format("frame_%06d.png", frameCount));
+                ImageIO.write(PngFileSink.toBufferedImage(frame), "png", pngFile);
+            }
+        }
+        return frameCount;
+    }
+
+    private static File getDefaultOutputFolder(File recording) {
+        String name = recording.getName();
+        if (name.endsWith(RawFrameRecorder.FILE_EXTENSION)) {
+            name = name.substring(0, name.length() - RawFrameRecorder.FILE_EXTENSION.length());
+        }
+        return new File(recording.getAbsoluteFile().getParentFile(), name);
+    }
+
+}
@@ -0,0 +1,105 @@
+package com.circuitjournal.storage;
+
+import com.circuitjournal.capture.FrameSnapshot;
+import com.circuitjournal.capture.PixelFormat;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads frames back from a file written by {@link RawFrameRecorder}
+ */
+public class RawRecordingReader implements Closeable {
+
+    private final FileChannel channel;
+    private final ByteBuffer headerBuffer = ByteBuffer.allocate(RawFrameRecorder.FRAME_HEADER_SIZE);
+    private ByteBuffer pixelBuffer = ByteBuffer.allocate(0);
+
+
+    public RawRecordingReader(File file) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        ByteBuffer fileHeader = ByteBuffer.allocate(RawFrameRecorder.FILE_HEADER_SIZE);
+        if (!readFully(fileHeader)) {
+            throw new IOException(file.getName() + " is empty");
+        }
+        fileHeader.flip();
+        int magic = fileHeader.getInt();
+        int version = fileHeader.getInt();
+        if (magic != RawFrameRecorder.FILE_MAGIC) {
+            throw new IOException(file.getName() + " is not a raw frame recording");
+        }
+        if (version != RawFrameRecorder.FORMAT_VERSION) {
+            throw new IOException("Unsupported recording version " + version);
+        }
+    }
+
+
+    /**
+     * @return next frame or null if the end of the recording is reached
+     */
+    public FrameSnapshot readFrame() throws IOException {
+        headerBuffer.clear();
+        if (!readFully(headerBuffer)) {
+            return null;
+        }
+        headerBuffer.flip();
+        if (headerBuffer.getInt() != RawFrameRecorder.FRAME_MARKER) {
+            throw new IOException("Frame marker not found at " + (channel.position() - headerBuffer.limit()));
+        }
+        int width = headerBuffer.getShort() & 0xFFFF;
+        int height = headerBuffer.getShort() & 0xFFFF;
+        PixelFormat pixelFormat = getPixelFormat(headerBuffer.get());
+        long captureTimeMillis = headerBuffer.getLong();
+        int invalidPixelCount = headerBuffer.getInt();
+
+        int pixelCount = width * height;
+        if (pixelBuffer.capacity() < pixelCount * 4) {
+            pixelBuffer = ByteBuffer.allocate(pixelCount * 4);
+        }
+        pixelBuffer.clear().limit(pixelCount * 4);
+        if (!readFully(pixelBuffer)) {
+            throw new EOFException("Recording ends in the middle of a frame");
+        }
+        pixelBuffer.flip();
+        int[] argbPixels = new int[pixelCount];
+        pixelBuffer.asIntBuffer().get(argbPixels);
+
+        return new FrameSnapshot(width, height, pixelFormat, invalidPixelCount, argbPixels, captureTimeMillis);
+    }
+
+    private PixelFormat getPixelFormat(byte ordinal) throws IOException {
+        PixelFormat[] pixelFormats = PixelFormat.values();
+        if (ordinal < 0 || ordinal >= pixelFormats.length) {
+            throw new IOException("Unknown pixel format " + ordinal);
+        }
+        return pixelFormats[ordinal];
+    }
+
+    /**
+     * @return false if end of file is reached before anything was read
+     */
+    private boolean readFully(ByteBuffer buffer) throws IOException {
+        boolean anythingRead = false;
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                if (anythingRead) {
+                    throw new EOFException("Recording is truncated");
+                }
+                return false;
+            }
+            anythingRead = true;
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+}
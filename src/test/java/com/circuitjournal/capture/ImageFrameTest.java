@@ -0,0 +1,60 @@
+package com.circuitjournal.capture;
+
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class ImageFrameTest {
+
+  private static final int ARGB_OPAQUE = 0xFF000000;
+
+
+  @Test
+  public void invalidPixelIsFixedFromFourNeighbours() {
+    ImageFrame frame = new ImageFrame(3, 3, PixelFormat.PIXEL_RGB565_WITH_PARITY_CHECK, () -> {});
+    addLine(frame, 0x000000, 0x100000, 0x000000);
+    frame.addPixel(0x000010);
+    frame.addPixel(0xFFFFFF, ImageFrame.INVALID_RGB);
+    frame.addPixel(0x000030);
+    addLine(frame, 0x000000, 0x001000, 0x000000);
+
+    // Averaged from top 0x10 red, bottom 0x10 green and left 0x10 + right 0x30 blue
+    assertEquals(ARGB_OPAQUE | 0x040410, frame.getPixelArgb(1, 1));
+  }
+
+  @Test
+  public void invalidPixelIsFixedWhenLineBelowIsFinished() {
+    List<Integer> capturedPixels = new ArrayList<>();
+    ImageFrame[] frame = new ImageFrame[1];
+    frame[0] = new ImageFrame(1, 3, PixelFormat.PIXEL_RGB565_WITH_PARITY_CHECK,
+        () -> capturedPixels.add(frame[0].getPixelArgb(0, 0)));
+    frame[0].addPixel(0xFFFFFF, ImageFrame.INVALID_R);
+    frame[0].addPixel(0x400000);
+    frame[0].addPixel(0x000000);
+
+    // Not fixed yet when the first line is captured, fixed from the line below with the second
+    assertEquals(ARGB_OPAQUE | 0x00FFFF, (int) capturedPixels.get(0));
+    assertEquals(ARGB_OPAQUE | 0x400000, (int) capturedPixels.get(1));
+  }
+
+  @Test
+  public void invalidPixelOfLastLineIsFixedWhenFinished() {
+    ImageFrame frame = new ImageFrame(1, 2, PixelFormat.PIXEL_RGB565_WITH_PARITY_CHECK, () -> {});
+    frame.addPixel(0x204060);
+    frame.addPixel(0xFFFFFF, ImageFrame.INVALID_RGB);
+
+    assertEquals(ARGB_OPAQUE | 0x204060, frame.getPixelArgb(0, 1));
+  }
+
+
+  private static void addLine(ImageFrame frame, int... rgbPixels) {
+    for (int rgb : rgbPixels) {
+      frame.addPixel(rgb);
+    }
+  }
+
+}
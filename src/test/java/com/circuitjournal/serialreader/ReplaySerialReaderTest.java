@@ -0,0 +1,86 @@
+package com.circuitjournal.serialreader;
+
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ReplaySerialReaderTest {
+
+  private static final int FIRST_CHUNK_SIZE = 100;
+  private static final int SECOND_CHUNK_SIZE = 50;
+
+  @TempDir
+  Path folder;
+
+
+  @Test
+  public void recordingCutInChunkEndsWithLastCompleteChunk() throws Exception {
+    File file = createRecordingCutInSecondChunk();
+
+    try (SerialTrafficReader reader = new SerialTrafficReader(file)) {
+      ByteBuffer chunk = reader.readChunk();
+      assertNotNull(chunk);
+      assertEquals(FIRST_CHUNK_SIZE, chunk.remaining());
+      assertNull(reader.readChunk());
+    }
+  }
+
+  @Test
+  public void recordingCutInChunkIsReplayedEveryRepeat() throws Exception {
+    File file = createRecordingCutInSecondChunk();
+    AtomicLong receivedByteCount = new AtomicLong();
+    CountDownLatch finished = new CountDownLatch(1);
+
+    ReplaySerialReader reader = new ReplaySerialReader(file, ReplaySerialReader.Pacing.AS_FAST_AS_POSSIBLE);
+    reader.setRepeatCount(3);
+    reader.setReceivedBufferHandler((buffer) -> receivedByteCount.addAndGet(buffer.remaining()));
+    reader.setReplayFinishedHandler(finished::countDown);
+    reader.startListening(file.getPath(), null);
+    try {
+      assertTrue(finished.await(10, TimeUnit.SECONDS));
+    } finally {
+      reader.stopListening();
+    }
+
+    assertEquals(3 * FIRST_CHUNK_SIZE, receivedByteCount.get());
+    assertEquals(3 * FIRST_CHUNK_SIZE, reader.getReplayedByteCount());
+  }
+
+
+  /**
+   * Like a recording of a daemon that was killed while writing the second chunk
+   */
+  private File createRecordingCutInSecondChunk() throws Exception {
+    File file = folder.resolve("cut" + SerialTrafficRecorder.FILE_EXTENSION).toFile();
+    try (SerialTrafficRecorder recorder = new SerialTrafficRecorder(file)) {
+      assertTrue(recorder.record(createBytes(FIRST_CHUNK_SIZE), 0, FIRST_CHUNK_SIZE));
+      assertTrue(recorder.record(createBytes(SECOND_CHUNK_SIZE), 0, SECOND_CHUNK_SIZE));
+    }
+    try (RandomAccessFile recording = new RandomAccessFile(file, "rw")) {
+      recording.setLength(recording.length() - SECOND_CHUNK_SIZE / 2);
+    }
+    return file;
+  }
+
+  private static byte [] createBytes(int length) {
+    byte [] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = (byte) (i + 1);
+    }
+    return bytes;
+  }
+
+}